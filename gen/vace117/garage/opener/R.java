@@ -28,16 +28,23 @@ public final class R {
     public static final class id {
         public static final int action_settings=0x7f090005;
         public static final int connectionProgressSpinner=0x7f090004;
+        public static final int doorAnimationStub=0x7f090008;
         public static final int doorImage=0x7f090001;
+        public static final int doorImageStub=0x7f090007;
         public static final int doorsOpeningVideo=0x7f090000;
+        public static final int errorLogStub=0x7f090006;
+        public static final int errorLogView=0x7f090009;
         public static final int exceptionLog=0x7f090003;
         public static final int garageUnavailableLabel=0x7f090002;
+        public static final int snapshotImage=0x7f09000a;
+        public static final int snapshotStub=0x7f09000b;
     }
     public static final class layout {
         public static final int activity_door_animation=0x7f030000;
         public static final int activity_door_image=0x7f030001;
         public static final int activity_error_log=0x7f030002;
-        public static final int activity_spinner=0x7f030003;
+        public static final int activity_garage_control=0x7f030003;
+        public static final int activity_snapshot=0x7f030004;
     }
     public static final class menu {
         public static final int garage_control=0x7f080000;
@@ -1,23 +1,41 @@
 package vace117.garage.opener;
 
-import android.app.Activity;
+import java.util.HashMap;
+import java.util.Map;
+
+import vace117.garage.opener.animation.FrameSequencePlayer;
+import vace117.garage.opener.animation.FrameSequencePlayer.FrameSequenceListener;
+import vace117.garage.opener.animation.SpriteSheet;
+import vace117.garage.opener.trace.LatencyTracer;
+import vace117.garage.opener.trace.TraceStage;
 import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnPreparedListener;
 import android.media.MediaPlayer.OnVideoSizeChangedListener;
 import android.util.Log;
-import android.view.LayoutInflater;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
-import android.view.ViewGroup;
 
 /**
  * Manages the SurfaceView we use to display the video sequences of opening, closing door and progress bar sequence.
- * 
- * The view is destroyed and recreated for every playback.
+ *
+ * The view is inflated from its ViewStub the first time it is needed, and shown or hidden for every playback. A single MediaPlayer is reused for all videos
+ * by switching its data source, and videos are prepared asynchronously, so starting an animation costs neither
+ * a layout inflation nor a blocking <code>prepare()</code>.
+ * <p>
+ * Since the controller usually knows which animation comes next, that video can be prepared ahead of time in a second, 
+ * standby MediaPlayer with <code>preload()</code>. When the preloaded video is requested, the two players swap roles and
+ * playback starts without waiting for the video to be prepared.
+ * <p>
+ * If all of the animations are available as sprite sheets in the assets (see <code>SpriteSheet</code>), they are played
+ * with a <code>FrameSequencePlayer</code> instead of MediaPlayer. That starts instantly and is easier on older devices.
+ * The two are never mixed, because once a Surface has been drawn on with a Canvas, MediaPlayer can't connect to it.
+ * <p>
+ * All MediaPlayer calls are made on the UI thread.
  *
  * @author Val Blant
  */
@@ -27,21 +45,52 @@ public class DoorAnimationManager implements OnCompletionListener, OnPreparedLis
 	private MediaPlayer mediaPlayer;
 	private SurfaceView surface;
 	private SurfaceHolder surfaceHolder;
+	private boolean isSurfaceReady = false;
 	private boolean isVideoSizeSet = false;
 	private boolean isVideoReadyToBePlayed = false;
 	
-	private Activity activity;
+	private MediaPlayer standbyPlayer;
+	private int standbyVideoId = 0;
+	private boolean isStandbyPrepared = false;
+	private int standbyVideoWidth;
+	private int standbyVideoHeight;
+
+	private GarageControlActivity activity;
 
-	private View mediaPlayerView;
 	
+	/**
+	 * Set once <code>release()</code> is called. The SurfaceView may already belong to another instance by then.
+	 */
+	private boolean isReleased = false;
+
 	private int currentVideoId;
+	private long animationStartTime;
+	private int animationTraceId;
+
+	private DoorAnimationListener doorAnimationListener;
 	
-	private DoorAnimationListener doorAnimationListener; 
+	/**
+	 * Decoded sprite sheets for every video, shared by all instances. 
+	 * <code>null</code> until all of them have been loaded, or if some are not available.
+	 */
+	private static volatile Map<Integer, SpriteSheet> frameSequences;
+	private static boolean isFrameSequenceLoadStarted = false;
 	
+	private FrameSequencePlayer frameSequencePlayer;
 	
-	public DoorAnimationManager(Activity activity, DoorAnimationListener dal) {
+	/**
+	 * Synced animations outside of this range would look wrong, so they are not attempted
+	 */
+	private static final float MIN_PLAYBACK_SPEED = 0.25f;
+	private static final float MAX_PLAYBACK_SPEED = 4f;
+	private float playbackSpeed = 1f;
+
+
+	public DoorAnimationManager(GarageControlActivity activity, DoorAnimationListener dal) {
 		this.activity = activity;
 		this.doorAnimationListener = dal;
+		
+		loadFrameSequences(activity.getAssets());
 	}
 
 	/**
@@ -71,46 +120,200 @@ public class DoorAnimationManager implements OnCompletionListener, OnPreparedLis
 	public void closeDoor() {
 		startAnimationSequence(R.raw.close_video);
 	}
-	
+
+	/**
+	 * Plays the open or close animation at whatever speed makes it last <code>durationMillis</code>.
+	 * <p>
+	 * Only sprite sheets can be played at a different rate. MediaPlayer can't do that before Android 6.
+	 * 
+	 * @param videoId <code>R.raw.open_video</code> or <code>R.raw.close_video</code>
+	 * @return <code>false</code> if the animation can't be played at the required speed. Nothing is played in that case.
+	 */
+	public boolean playSynced(int videoId, long durationMillis) {
+		Map<Integer, SpriteSheet> sequences = frameSequences;
+		if ( sequences == null || durationMillis <= 0 ) return false;
+		
+		float speed = (float) sequences.get(videoId).getDurationMillis() / durationMillis;
+		if ( speed < MIN_PLAYBACK_SPEED || speed > MAX_PLAYBACK_SPEED ) return false;
+		
+		startAnimationSequence(videoId, speed);
+		return true;
+	}
+
+	/**
+	 * Prepares the given video in the standby player, so that it can start instantly when it's requested.
+	 * Replaces any previously preloaded video.
+	 * 
+	 * @param videoId One of <code>R.raw.open_video</code>, <code>R.raw.close_video</code> or <code>R.raw.loading_screen_loop_flipped</code>
+	 */
+	public void preload(final int videoId) {
+		if ( frameSequences != null ) return; // Sprite sheets are always ready
+		
+		activity.runOnUiThread(new Runnable() {
+			public void run() {
+				if ( standbyVideoId == videoId ) return; // Already there
+				
+				try {
+					if ( standbyPlayer == null ) {
+						standbyPlayer = createMediaPlayer();
+					}
+					standbyPlayer.reset();
+					isStandbyPrepared = false;
+					standbyVideoWidth = standbyVideoHeight = 0;
+					
+					AssetFileDescriptor afd = activity.getResources().openRawResourceFd(videoId);
+					standbyPlayer.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+					afd.close();
+					standbyPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+					standbyPlayer.prepareAsync();
+					
+					standbyVideoId = videoId;
+				}
+				catch (Exception e) {
+					Log.e(TAG, "Unable to preload video: " + e.getMessage(), e);
+					standbyVideoId = 0;
+				}
+				
+				if ( frameSequencePlayer != null ) {
+					frameSequencePlayer.release();
+					frameSequencePlayer = null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops the playback and hides the view. The view and the MediaPlayer are kept for the next animation.
+	 */
 	public void hide() {
-		removeView();
+		activity.runOnUiThread(new Runnable() {
+			public void run() {
+				stopPlayback();
+				if ( surface != null ) {
+					surface.setVisibility(View.GONE);
+				}
+			}
+		});
 	}
 
+	/**
+	 * Hides our SurfaceView, lets go of it so that another instance of this class can take it over, and releases the MediaPlayer.
+	 * This must be called if we want to make this class re-entrant.
+	 */
+	public void release() {
+		activity.runOnUiThread(new Runnable() {
+			public void run() {
+				isReleased = true;
+				stopPlayback();
+				if ( surface != null ) {
+					surface.setVisibility(View.GONE);
+					surfaceHolder.removeCallback(DoorAnimationManager.this);
+					surface = null;
+					surfaceHolder = null;
+					isSurfaceReady = false;
+				}
+				releaseMediaPlayer();
+				
+				if ( standbyPlayer != null ) {
+					standbyPlayer.release();
+					standbyPlayer = null;
+					standbyVideoId = 0;
+				}
+				
+				if ( frameSequencePlayer != null ) {
+					frameSequencePlayer.release();
+					frameSequencePlayer = null;
+				}
+			}
+		});
+	}
+
+
 
-	
-	
 	private void startAnimationSequence(int videoId) {
-		currentVideoId = videoId;
+		startAnimationSequence(videoId, 1f);
+	}
+
+	private void startAnimationSequence(final int videoId, final float speed) {
+		animationStartTime = LatencyTracer.now();
+		animationTraceId = LatencyTracer.getCurrentTraceId();
 
 		activity.runOnUiThread(new Runnable() {
 	        public void run() {
-		
-				removeView(); // Make sure our SurfaceView is removed before we try adding another
-		
-				// Inflate the view from XML
-				//
-				LayoutInflater inflater = activity.getLayoutInflater();
-				mediaPlayerView = inflater.inflate(R.layout.activity_door_animation, null);
-		
-				// Add the view and make it fill the activity
+	        	if ( isReleased ) return;
+	        	
+	        	currentVideoId = videoId;
+	        	playbackSpeed = speed;
+
+	        	createView();
+				surface.setVisibility(View.VISIBLE);
+
+				// If the surface isn't there yet, the video will be started from surfaceCreated()
 				//
-				activity.addContentView(mediaPlayerView, new ViewGroup.LayoutParams(
-		                	ViewGroup.LayoutParams.MATCH_PARENT,
-		                	ViewGroup.LayoutParams.MATCH_PARENT));
-		
-				
-		        surface = (SurfaceView) activity.findViewById(R.id.doorsOpeningVideo);
-		        surfaceHolder = surface.getHolder();
-		        surfaceHolder.addCallback(DoorAnimationManager.this);		
-		        
-				
-				mediaPlayerView.setVisibility(View.VISIBLE);
-				
+				if ( isSurfaceReady ) {
+					playVideo();
+				}
 	        }
 		});
+
+	}
+
+	/**
+	 * Inflates the SurfaceView from its ViewStub the first time we need it, or takes over the one left behind by a previous instance
+	 */
+	private void createView() {
+		if ( surface == null ) {
+	        surface = (SurfaceView) activity.getScreen(R.id.doorAnimationStub, R.id.doorsOpeningVideo);
+	        surfaceHolder = surface.getHolder();
+	        surfaceHolder.addCallback(this);
+		}
+	}
+
+	/**
+	 * Creates the one MediaPlayer we use for all videos, the first time we need it
+	 */
+	private MediaPlayer getMediaPlayer() {
+		if ( mediaPlayer == null ) {
+			mediaPlayer = createMediaPlayer();
+		}
+
+		return mediaPlayer;
+	}
+	
+	private MediaPlayer createMediaPlayer() {
+		MediaPlayer player = new MediaPlayer();
+		player.setOnCompletionListener(this);
+		player.setOnPreparedListener(this);
+		player.setOnVideoSizeChangedListener(this);
 		
+		return player;
 	}
 	
+	/**
+	 * Makes the standby player, which has the current video preloaded, the active one.
+	 * The previously active player becomes the new standby.
+	 */
+	private void swapInStandbyPlayer() {
+		Log.v(TAG, "Using preloaded video");
+		
+		MediaPlayer previousPlayer = mediaPlayer;
+		if ( previousPlayer != null ) previousPlayer.reset();
+		
+		mediaPlayer = standbyPlayer;
+		standbyPlayer = previousPlayer;
+		standbyVideoId = 0;
+		
+		mediaPlayer.setDisplay(surfaceHolder);
+		
+		if ( standbyVideoWidth > 0 ) {
+			onVideoSizeChanged(mediaPlayer, standbyVideoWidth, standbyVideoHeight);
+		}
+		if ( isStandbyPrepared ) {
+			onPrepared(mediaPlayer);
+		}
+		// Otherwise the callbacks will arrive once the preparation, which is already under way, is done 
+	}
+
     private void startVideoPlayback() {
         Log.v(TAG, "startVideoPlayback");
         if ( isVideoReadyToBePlayed ) {
@@ -126,57 +329,109 @@ public class DoorAnimationManager implements OnCompletionListener, OnPreparedLis
      */
     public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
         Log.v(TAG, "onVideoSizeChanged called");
+        if ( mp == standbyPlayer ) {
+        	// Remember it for when the preloaded video gets played
+        	standbyVideoWidth = width;
+        	standbyVideoHeight = height;
+        	return;
+        }
+
         if (width == 0 || height == 0) {
             Log.e(TAG, "invalid video width(" + width + ") or height(" + height + ")");
             return;
         }
         isVideoSizeSet = true;
-        
-        float aspectRatio = (float) height / (float) width;
-        
-        // Size the ViewSurface to take up the full width of the phone
-        //
+
+        sizeSurface(width, height);
+
+        if (isVideoReadyToBePlayed && isVideoSizeSet) {
+            startVideoPlayback();
+        }
+    }
+
+
+    /**
+     * Size the ViewSurface to take up the full width of the phone, keeping the aspect ratio of the video
+     */
+    private void sizeSurface(int videoWidth, int videoHeight) {
+        float aspectRatio = (float) videoHeight / (float) videoWidth;
+
         android.view.ViewGroup.LayoutParams lp = surface.getLayoutParams();
         lp.width = activity.getWindow().getDecorView().getWidth();
         lp.height = Math.round(lp.width * aspectRatio);
         surface.setLayoutParams(lp);
-        
-        if (isVideoReadyToBePlayed && isVideoSizeSet) {
-            startVideoPlayback();
-        }
     }
 
-	
+
 	/**
-	 * Called when our SurfaceView is created.
-	 * 
-	 * Reads the video file from Resources and sets up the MediaPlayer
+	 * Called when our SurfaceView is ready and we have a video to play.
+	 *
+	 * Switches the MediaPlayer to the video file from Resources and starts preparing it in the background
 	 */
     private void playVideo() {
 	        doCleanUp();
+	        
+	        if ( frameSequences != null ) {
+	        	playFrameSequence(frameSequences.get(currentVideoId));
+	        	return;
+	        }
+	        
+	        if ( standbyVideoId == currentVideoId && standbyPlayer != null ) {
+	        	swapInStandbyPlayer();
+	        	return;
+	        }
+	        
 	        try {
-	
-	            // Create a new media player and set the listeners
+	        	MediaPlayer player = getMediaPlayer();
+	        	player.reset();
+
 	            AssetFileDescriptor afd = activity.getResources().openRawResourceFd(currentVideoId);
-	            mediaPlayer = new MediaPlayer();
-	            mediaPlayer.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+	            player.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
 	            afd.close();
-	            mediaPlayer.setDisplay(surfaceHolder);
-	            mediaPlayer.prepare();
-	            mediaPlayer.setOnCompletionListener(this);
-	            mediaPlayer.setOnPreparedListener(this);
-	            mediaPlayer.setOnVideoSizeChangedListener(this);
-	            mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-	
-	
+	            player.setDisplay(surfaceHolder);
+	            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+	            player.prepareAsync();
+
 	        } catch (Exception e) {
 	            Log.e(TAG, "error: " + e.getMessage(), e);
 	        }
     }
 
     /**
-     * Called when our SurfaceView is destroyed, which happens when the view is removed from the Activity
+     * Plays the sprite sheet version of the current video
+     */
+    private void playFrameSequence(SpriteSheet sequence) {
+    	if ( frameSequencePlayer == null ) {
+    		frameSequencePlayer = new FrameSequencePlayer();
+    	}
+    	
+    	sizeSurface(sequence.getFrameWidth(), sequence.getFrameHeight());
+    	
+    	frameSequencePlayer.play(sequence, surfaceHolder, false, new FrameSequenceListener() {
+			public void sequenceCompleted(FrameSequencePlayer player) {
+				activity.runOnUiThread(new Runnable() {
+					public void run() {
+						animationFinished();
+					}
+				});
+			}
+		});
+    	frameSequencePlayer.setPlaybackSpeed(playbackSpeed);
+    }
+
+    /**
+     * Stops whatever is playing. <code>reset()</code> is legal in any state, unlike <code>stop()</code>.
      */
+    private void stopPlayback() {
+    	if ( mediaPlayer != null ) {
+    		mediaPlayer.reset();
+    	}
+    	if ( frameSequencePlayer != null ) {
+    		frameSequencePlayer.stop();
+    	}
+    	doCleanUp();
+    }
+
     private void releaseMediaPlayer() {
         if (mediaPlayer != null) {
             mediaPlayer.release();
@@ -188,36 +443,29 @@ public class DoorAnimationManager implements OnCompletionListener, OnPreparedLis
         isVideoReadyToBePlayed = false;
         isVideoSizeSet = false;
     }
-    
-    /**
-     * Removes our SurfaceView from the Activity. This causes the view to be destroyed.
-     */
-    private void removeView() {
-    	if ( mediaPlayer != null ) {
-    		mediaPlayer.stop();
-
-    		activity.runOnUiThread(new Runnable() {
-    	        public void run() {
-    	    		((ViewGroup)mediaPlayerView.getParent()).removeView(mediaPlayerView);
-    	        	mediaPlayerView.setVisibility(View.GONE);
-    	        }
-    		});
-    	}
-    	
-    }
 
 
     public void onCompletion(MediaPlayer arg0) {
         Log.d(TAG, "onCompletion called");
-        
+        animationFinished();
+    }
+    
+    private void animationFinished() {
+        LatencyTracer.record(animationTraceId, TraceStage.ANIMATION, animationStartTime);
+
         // Tell our caller that video is over
         //
         doorAnimationListener.animationCompleted();
-        
+
     }
 
     public void onPrepared(MediaPlayer mediaplayer) {
         Log.d(TAG, "onPrepared called");
+        if ( mediaplayer == standbyPlayer ) {
+        	isStandbyPrepared = true;
+        	return;
+        }
+
         isVideoReadyToBePlayed = true;
         if (isVideoReadyToBePlayed && isVideoSizeSet) {
             startVideoPlayback();
@@ -229,16 +477,55 @@ public class DoorAnimationManager implements OnCompletionListener, OnPreparedLis
 
     }
 
+    /**
+     * Called when our SurfaceView is hidden. The MediaPlayer is kept, but it can't draw anywhere until the surface comes back.
+     */
     public void surfaceDestroyed(SurfaceHolder surfaceholder) {
         Log.d(TAG, "surfaceDestroyed called");
-        releaseMediaPlayer();
-        doCleanUp();
+        isSurfaceReady = false;
+        stopPlayback();
     }
 
 
     public void surfaceCreated(SurfaceHolder holder) {
         Log.d(TAG, "surfaceCreated called");
+        isSurfaceReady = true;
         playVideo();
     }
-	
+
+
+    /**
+     * Loads the sprite sheets for all of the videos in the background, once per process.
+     * Frame sequences are only used if every video has one.
+     */
+    private static synchronized void loadFrameSequences(final AssetManager assets) {
+    	if ( isFrameSequenceLoadStarted ) return;
+    	isFrameSequenceLoadStarted = true;
+    	
+    	new Thread(new Runnable() {
+			public void run() {
+				Map<Integer, SpriteSheet> sequences = new HashMap<Integer, SpriteSheet>();
+				try {
+					sequences.put(R.raw.open_video, SpriteSheet.loadFromAssets(assets, "open_video"));
+					sequences.put(R.raw.close_video, SpriteSheet.loadFromAssets(assets, "close_video"));
+					sequences.put(R.raw.loading_screen_loop_flipped, SpriteSheet.loadFromAssets(assets, "loading_screen_loop_flipped"));
+				}
+				catch (Exception e) {
+					// The sheets are there, but broken
+					Log.e(TAG, "Unable to load sprite sheets: " + e.getMessage(), e);
+					return;
+				}
+				
+				if ( sequences.containsValue(null) ) {
+					// The usual case: no sprite sheets ship with the app
+					Log.i(TAG, "No sprite sheets for some of the door animations, so they are played as videos");
+				}
+				else {
+					Log.i(TAG, "Using sprite sheets for door animations");
+					frameSequences = sequences;
+				}
+			}
+		}, "Sprite Sheet Loader").start();
+    }
+
 }
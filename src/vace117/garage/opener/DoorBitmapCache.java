@@ -0,0 +1,160 @@
+package vace117.garage.opener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+/**
+ * Process-wide cache of the door images.
+ * <p>
+ * The images are decoded on a background thread, downsampled to the size they will be displayed at, and kept in an
+ * LRU cache that outlives <code>GarageDoorController</code> instances. After the first time, resuming the app or switching
+ * modes doesn't decode anything.
+ * <p>
+ * Bitmaps evicted from the cache are not reused for later decodes. <code>DoorPictureManager</code> instances hold on to
+ * their bitmaps, and their ImageView is handed on to the next instance, so an evicted bitmap may still be on the screen.
+ *
+ * @author Val Blant
+ */
+public class DoorBitmapCache {
+	private static DoorBitmapCache instance;
+
+	private LruCache<String, Bitmap> cache;
+
+	private ExecutorService decoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Door Bitmap Decoder");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+
+	/**
+	 * Receives images loaded in the background
+	 */
+	public interface BitmapListener {
+		/**
+		 * Called on the decoder thread
+		 */
+		public void bitmapLoaded(int bitmapId, Bitmap bitmap);
+		
+		public void bitmapFailed(int bitmapId, Exception e);
+	}
+
+
+	public static synchronized DoorBitmapCache getInstance() {
+		if ( instance == null ) {
+			instance = new DoorBitmapCache();
+		}
+		return instance;
+	}
+
+	private DoorBitmapCache() {
+		// Use up to 1/8th of the heap, measured in KB
+		//
+		int cacheSize = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+
+		cache = new LruCache<String, Bitmap>(cacheSize) {
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				return bitmap.getRowBytes() * bitmap.getHeight() / 1024;
+			}
+		};
+	}
+
+	/**
+	 * Delivers the image to the listener, decoding it in the background if it isn't in the cache yet.
+	 *
+	 * @param resources
+	 * @param bitmapId Raw resource id of the image
+	 * @param targetWidth Width the image will be displayed at. The decoded image will not be much smaller than this.
+	 * @param targetHeight Height the image will be displayed at.
+	 * @param listener
+	 */
+	public void load(final Resources resources, final int bitmapId, final int targetWidth, final int targetHeight, final BitmapListener listener) {
+		decoder.execute(new Runnable() {
+			public void run() {
+				Bitmap bitmap;
+				try {
+					bitmap = getOrDecode(resources, bitmapId, targetWidth, targetHeight);
+				}
+				catch (Exception e) {
+					listener.bitmapFailed(bitmapId, e);
+					return;
+				}
+				listener.bitmapLoaded(bitmapId, bitmap);
+			}
+		});
+	}
+
+	/**
+	 * Drops all cached images. Called by <code>GarageControlActivity</code> when the system is low on memory.
+	 */
+	public void clear() {
+		cache.evictAll();
+	}
+
+
+	/**
+	 * Only ever called on the decoder thread
+	 */
+	private Bitmap getOrDecode(Resources resources, int bitmapId, int targetWidth, int targetHeight) throws IOException {
+		String key = bitmapId + "@" + targetWidth + "x" + targetHeight;
+
+		Bitmap bitmap = cache.get(key);
+		if ( bitmap == null ) {
+			bitmap = decode(resources, bitmapId, targetWidth, targetHeight);
+			if ( bitmap == null ) {
+				throw new IOException("Unable to decode image " + bitmapId);
+			}
+			cache.put(key, bitmap);
+		}
+
+		return bitmap;
+	}
+
+	private Bitmap decode(Resources resources, int bitmapId, int targetWidth, int targetHeight) throws IOException {
+		// Find out how big the image is without decoding it
+		//
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		decodeStream(resources, bitmapId, options);
+
+		options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+		options.inJustDecodeBounds = false;
+
+		return decodeStream(resources, bitmapId, options);
+	}
+
+	private Bitmap decodeStream(Resources resources, int bitmapId, BitmapFactory.Options options) throws IOException {
+		InputStream input = resources.openRawResource(bitmapId);
+		try {
+			return BitmapFactory.decodeStream(input, null, options);
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @return The largest power of 2 that keeps the decoded image at least as big as the target
+	 */
+	static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+		int sampleSize = 1;
+		if ( targetWidth <= 0 || targetHeight <= 0 ) return sampleSize;
+
+		while ( width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight ) {
+			sampleSize *= 2;
+		}
+
+		return sampleSize;
+	}
+}
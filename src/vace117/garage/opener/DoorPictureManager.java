@@ -16,32 +16,49 @@
 
 package vace117.garage.opener;
 
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-
+import vace117.garage.opener.engine.DoorSnapshot;
+import vace117.garage.opener.engine.GarageDoorState;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.View;
-import android.view.ViewGroup;
 import android.widget.ImageView;
 
 /**
  * Handles the ImageView we use to display images of open and closed door.
  * 
- * This view is created once and reused when images need to change.
+ * The ImageView is inflated from its ViewStub the first time a door is shown, and reused when images need to change.
+ * <p>
+ * Initialization is asynchronous and nobody ever waits for it. Requests to show, hide or enable the door
+ * that arrive before the view and the images are ready are remembered, and only the latest state is applied
+ * once everything is ready. All of the state below is only touched on the UI thread.
  *
  * @author Val Blant
  */
 public class DoorPictureManager  {
+	private static final String TAG = "DoorPictureManager";
+	private static final float STALE_ALPHA = 0.4f;
+	
 	private GarageControlActivity activity;
 	
 	private Bitmap openDoorBitmap;
     private Bitmap closedDoorBitmap;
+    private int pendingBitmaps = 2;
     
-    private View doorImageView;    
     private ImageView doorImage;
-    // Used to ensure that we don't try to display anything until the view is properly inititalized
-    private CountDownLatch initLatch = new CountDownLatch(1);
+    
+    /**
+     * What the view should look like, as of the latest request
+     */
+    private enum DoorDisplay {HIDDEN, OPEN, CLOSED, STALE_OPEN, STALE_CLOSED}
+    private DoorDisplay requestedDisplay = DoorDisplay.HIDDEN;
+    private boolean isClickEnabled = false;
+    private String description = null;
+    
+    /**
+     * Set once <code>removeView()</code> is called. The ImageView may already belong to another instance by then.
+     */
+    private boolean isRemoved = false;
     
     private DoorImageListener doorImageListener;
 
@@ -56,126 +73,186 @@ public class DoorPictureManager  {
 		this.activity = activity;
 		this.doorImageListener = doorImageListener;
 		
-		createImageView();
+		loadBitmaps();
 	}
 	
 	public void showOpenDoor() {
-		waitForInit();
-		showDoor(openDoorBitmap);
+		request(DoorDisplay.OPEN, true);
 	}
 	
 	public void showClosedDoor() {
-		waitForInit();
-		showDoor(closedDoorBitmap);
+		request(DoorDisplay.CLOSED, true);
 	}
 	
 	/**
-	 * Enforces init lock
+	 * Shows the last known state of the door, before we get the live status from the garage. 
+	 * The image is faded out and can't be clicked until one of the <code>show*Door()</code> methods is called.
+	 * 
+	 * @param isOpen
 	 */
-	private void waitForInit() {
-		try {
-			initLatch.await(5000, TimeUnit.MILLISECONDS);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
-		}
+	public void showStaleDoor(boolean isOpen) {
+		request(isOpen ? DoorDisplay.STALE_OPEN : DoorDisplay.STALE_CLOSED, false);
 	}
 	
 	/**
-	 * @param door The image to display
+	 * Used to enable or disable the clicks on this ImageView
+	 * 
+	 * @param state
 	 */
-	private void showDoor(final Bitmap door) {
-		activity.runOnUiThread(new Runnable() {
-			public void run() {
-				doorImage.setImageBitmap(door);
-				doorImageView.setVisibility(View.VISIBLE);
-				setEnabled(true);
-			}
-		});
+	public void setEnabled(boolean state) {
+		request(null, state);
 	}
 	
 	/**
-	 * Used to enable or disable the clicks on this ImageView
-	 * 
-	 * @param state
+	 * Keeps the accessibility description of the door in line with the door state. Only called on the UI thread.
 	 */
-	public void setEnabled(final boolean state) {
-		activity.runOnUiThread(new Runnable() {
-			public void run() {
-				doorImage.setEnabled(state);
-			}
-		});
+	public void describeDoor(DoorSnapshot state) {
+		switch ( state.getDoorState() ) {
+			case OPEN:
+				description = "Garage door is open";
+				break;
+			case CLOSED:
+				description = "Garage door is closed";
+				break;
+			case MOVING:
+				GarageDoorState target = state.getPredictedDoorStateAfterMovement();
+				description = target == GarageDoorState.OPEN ? "Garage door is opening"
+						: target == GarageDoorState.CLOSED ? "Garage door is closing"
+						: "Garage door is moving";
+				break;
+		}
+		
+		if ( doorImage != null && !isRemoved ) {
+			doorImage.setContentDescription(description);
+		}
 	}
 	
 	/**
 	 * Hides the ImageView w/o destroying it
 	 */
 	public void hide() {
-		if ( doorImageView != null ) {
-			activity.runOnUiThread(new Runnable() {
-				public void run() {
-					doorImageView.setVisibility(View.GONE);
-				}
-			});
-		}
+		request(DoorDisplay.HIDDEN, false);
 	}
 	
 	/**
+	 * Hides the ImageView and lets go of it, so that another instance of this class can take it over.
 	 * This must be called if we want to make this class re-entrant.
 	 */
     public void removeView() {
-    	if ( doorImageView != null ) {
-
-    		activity.runOnUiThread(new Runnable() {
-    	        public void run() {
-    	    		((ViewGroup)doorImageView.getParent()).removeView(doorImageView);
-    	    		doorImageView.setVisibility(View.GONE);
-    	        }
-    		});
-    	}
-    	
+		activity.runOnUiThread(new Runnable() {
+	        public void run() {
+	        	isRemoved = true;
+	        	if ( doorImage != null ) {
+	        		doorImage.setVisibility(View.GONE);
+	        		doorImage.setOnClickListener(null);
+	        		doorImage = null;
+	        	}
+	        }
+		});
     }
-
+    
     /**
-     * Initializes the view and the images
+     * Records the requested state and applies it, if we are ready
+     * 
+     * @param display New display, or <code>null</code> to keep the current one
+     * @param isEnabled
      */
-	private void createImageView() {
+    private void request(final DoorDisplay display, final boolean isEnabled) {
 		activity.runOnUiThread(new Runnable() {
 			public void run() {
-		
-				doorImageView = activity.getLayoutInflater().inflate(R.layout.activity_door_image, null);
-				activity.addContentView(doorImageView, new ViewGroup.LayoutParams(
-		                	ViewGroup.LayoutParams.MATCH_PARENT,
-		                	ViewGroup.LayoutParams.MATCH_PARENT));
-		
+				if ( display != null ) requestedDisplay = display;
+				isClickEnabled = isEnabled;
 				
-				doorImage = (ImageView) activity.findViewById(R.id.doorImage);
-				doorImage.setOnClickListener(new View.OnClickListener() {
-		            public void onClick(View v) {
-		            	doorImageListener.doorClicked();
-		            }
-		        });
-				
-		        openDoorBitmap = createBitmap(R.drawable.open_door);
-		        closedDoorBitmap = createBitmap(R.drawable.closed_door);
-		        
-		        hide();
-		        
-		        initLatch.countDown();
+				applyRequestedState();
 			}
 		});
-		        
+    }
+    
+    /**
+     * Brings the view in line with the latest request. Does nothing until the images are ready.
+     * The view isn't inflated until there is a door to show.
+     */
+    private void applyRequestedState() {
+    	if ( pendingBitmaps > 0 || isRemoved ) return;
+    	if ( doorImage == null ) {
+    		if ( requestedDisplay == DoorDisplay.HIDDEN ) return;
+    		createImageView();
+    	}
+    	
+    	switch ( requestedDisplay ) {
+	    	case HIDDEN:
+	    		doorImage.setVisibility(View.GONE);
+	    		break;
+	    	case OPEN:
+	    	case CLOSED:
+	    	case STALE_OPEN:
+	    	case STALE_CLOSED:
+	    		boolean isOpen = requestedDisplay == DoorDisplay.OPEN || requestedDisplay == DoorDisplay.STALE_OPEN;
+	    		boolean isStale = requestedDisplay == DoorDisplay.STALE_OPEN || requestedDisplay == DoorDisplay.STALE_CLOSED;
+	    		
+	    		doorImage.setImageBitmap(isOpen ? openDoorBitmap : closedDoorBitmap);
+	    		doorImage.setAlpha(isStale ? STALE_ALPHA : 1f);
+	    		doorImage.setVisibility(View.VISIBLE);
+	    		break;
+    	}
+    	
+    	doorImage.setEnabled(isClickEnabled);
+    }
+
+    /**
+     * Inflates the ImageView, or takes over the one left behind by a previous instance. Only called on the UI thread.
+     */
+	private void createImageView() {
+		doorImage = (ImageView) activity.getScreen(R.id.doorImageStub, R.id.doorImage);
+		doorImage.setContentDescription(description);
+		doorImage.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+            	doorImageListener.doorClicked();
+            }
+        });
 	}
 	
 	/**
-	 * Reads specified bitmap from Resources
-	 * 
-	 * @param bitmapId
-	 * @return
+	 * Loads both images in the background, at the size of the screen. 
+	 * They usually come straight out of the cache, since they are shared by all instances of this class.
 	 */
-    private Bitmap createBitmap(int bitmapId) {
-    	return BitmapFactory.decodeStream( activity.getResources().openRawResource(bitmapId) );
-    }	
+	private void loadBitmaps() {
+		DisplayMetrics screen = activity.getResources().getDisplayMetrics();
+		
+		DoorBitmapCache.BitmapListener listener = new DoorBitmapCache.BitmapListener() {
+			public void bitmapLoaded(final int bitmapId, final Bitmap bitmap) {
+				activity.runOnUiThread(new Runnable() {
+					public void run() {
+						if ( bitmapId == R.drawable.open_door ) {
+							openDoorBitmap = bitmap;
+						}
+						else {
+							closedDoorBitmap = bitmap;
+						}
+						
+						pendingBitmaps--;
+						applyRequestedState();
+					}
+				});
+			}
+			
+			public void bitmapFailed(int bitmapId, Exception e) {
+				Log.e(TAG, "Unable to load door image", e);
+				
+				// The door will be blank, but at least we won't wait for it
+				//
+				activity.runOnUiThread(new Runnable() {
+					public void run() {
+						pendingBitmaps--;
+						applyRequestedState();
+					}
+				});
+			}
+		};
+		
+		DoorBitmapCache.getInstance().load(activity.getResources(), R.drawable.open_door, screen.widthPixels, screen.heightPixels, listener);
+		DoorBitmapCache.getInstance().load(activity.getResources(), R.drawable.closed_door, screen.widthPixels, screen.heightPixels, listener);
+	}
 
 
 }
-
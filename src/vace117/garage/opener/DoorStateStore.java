@@ -0,0 +1,114 @@
+package vace117.garage.opener;
+
+import java.util.Map;
+
+import vace117.garage.opener.engine.DoorStateMemory;
+import vace117.garage.opener.engine.GarageDoorState;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the last confirmed state of the door between runs of the app, in <code>SharedPreferences</code>.
+ * <p>
+ * This lets us draw the door as soon as the app starts, instead of staring at the spinner while we
+ * wait for the network. The stored state is only a hint - it is always reconciled with the live status.
+ * <p>
+ * Every door has its own preferences file, so that switching doors never shows the state or uses the travel times
+ * of another one.
+ *
+ * @author Val Blant
+ */
+public class DoorStateStore implements DoorStateMemory {
+	private static final String PREFERENCES_NAME_PREFIX = "DoorState.";
+	private static final String LEGACY_PREFERENCES_NAME = "DoorState"; // Shared by all doors, before they had their own
+	private static final String STATE_KEY = "lastKnownState";
+	private static final String TIMESTAMP_KEY = "lastKnownStateTime";
+	private static final String TRAVEL_TIME_KEY_PREFIX = "travelTime.";
+	
+	private static boolean isLegacyStateMigrated = false;
+	
+	private SharedPreferences preferences;
+
+	/**
+	 * @param doorId Identifies the door, e.g. <code>GarageDevice.getKeyId()</code>
+	 */
+	public DoorStateStore(Context context, String doorId) {
+		preferences = context.getSharedPreferences(PREFERENCES_NAME_PREFIX + doorId, Context.MODE_PRIVATE);
+	}
+	
+	/**
+	 * Moves the state remembered before every door had its own preferences to the given door, unless that door has a state
+	 * of its own already. The old preferences are emptied. Only does anything the first time it's called.
+	 * 
+	 * @param doorId The door the old state belongs to. The app only knew about the default door back then.
+	 */
+	public static synchronized void migrateLegacyState(Context context, String doorId) {
+		if ( isLegacyStateMigrated ) return;
+		isLegacyStateMigrated = true;
+		
+		SharedPreferences legacy = context.getSharedPreferences(LEGACY_PREFERENCES_NAME, Context.MODE_PRIVATE);
+		Map<String, ?> values = legacy.getAll();
+		if ( values.isEmpty() ) return;
+		
+		SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME_PREFIX + doorId, Context.MODE_PRIVATE);
+		if ( !preferences.contains(STATE_KEY) ) {
+			SharedPreferences.Editor editor = preferences.edit();
+			for ( Map.Entry<String, ?> value : values.entrySet() ) {
+				if ( value.getValue() instanceof String ) editor.putString(value.getKey(), (String) value.getValue());
+				else if ( value.getValue() instanceof Long ) editor.putLong(value.getKey(), (Long) value.getValue());
+			}
+			editor.apply();
+		}
+		
+		legacy.edit().clear().apply();
+	}
+	
+	/**
+	 * Records a confirmed door state. Only OPEN and CLOSED are worth remembering.
+	 * <p>
+	 * The write to disk happens in the background.
+	 */
+	@Override
+	public void save(GarageDoorState state) {
+		if ( state == GarageDoorState.MOVING ) return;
+		
+		preferences.edit()
+			.putString(STATE_KEY, state.name())
+			.putLong(TIMESTAMP_KEY, System.currentTimeMillis())
+			.apply();
+	}
+
+	/**
+	 * @return The last confirmed door state, or <code>null</code> if we've never talked to the garage
+	 */
+	@Override
+	public GarageDoorState getLastKnownState() {
+		String state = preferences.getString(STATE_KEY, null);
+		try {
+			return state == null ? null : GarageDoorState.valueOf(state);
+		}
+		catch (IllegalArgumentException e) {
+			return null; // Written by some other version of the app
+		}
+	}
+	
+	/**
+	 * @return When the last known state was confirmed, in ms since the epoch. 0 if never. 
+	 */
+	@Override
+	public long getLastKnownStateTime() {
+		return preferences.getLong(TIMESTAMP_KEY, 0);
+	}
+	
+	@Override
+	public long getTravelTime(GarageDoorState direction) {
+		return preferences.getLong(TRAVEL_TIME_KEY_PREFIX + direction.name(), 0);
+	}
+	
+	@Override
+	public void saveTravelTime(GarageDoorState direction, long travelMillis) {
+		preferences.edit()
+			.putLong(TRAVEL_TIME_KEY_PREFIX + direction.name(), travelMillis)
+			.apply();
+	}
+}
@@ -0,0 +1,266 @@
+package vace117.garage.opener;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Bounded journal of errors to be shown on the Error Log screen.
+ * <p>
+ * When the garage can't be reached, the polling timer produces the same failure over and over. Instead of 
+ * rendering a full stack dump for every one of them, each error is fingerprinted by its chain of exception types
+ * and throw sites. A repeat of a known error only bumps its count, and a compact stack trace is built
+ * just once per distinct error. At most <code>CAPACITY</code> distinct errors are kept; the oldest is dropped
+ * to make room, so memory stays flat no matter how long the outage lasts.
+ * <p>
+ * Rendering is lazy: <code>pollUpdate()</code> returns nothing if the journal hasn't changed since the last
+ * call. Otherwise it returns only what changed: the headers of the entries whose count went up, as replacements of
+ * their old headers, followed by the newly added entries. Everything is rendered again only when the oldest entry is
+ * dropped. The journal keeps track of where each entry starts in the rendered text for this.
+ *
+ * @author Val Blant
+ */
+public class ErrorJournal {
+	private static final int CAPACITY = 16;
+	private static final int MAX_FRAMES_PER_CAUSE = 6;
+	private static final int MAX_CAUSES = 4;
+	
+	private static class Entry {
+		String fingerprint;
+		String stackTrace;
+		int count;
+		long firstSeen;
+		long lastSeen;
+		
+		int renderedStart = -1; // Where the header starts in the rendered text, or -1 if not rendered yet
+		int renderedHeaderLength;
+		boolean isHeaderStale;
+	}
+	
+	/**
+	 * Replaces the text between <code>start</code> and <code>end</code> of what was rendered so far
+	 */
+	public static class Replacement {
+		public final int start;
+		public final int end;
+		public final String text;
+		
+		Replacement(int start, int end, String text) {
+			this.start = start;
+			this.end = end;
+			this.text = text;
+		}
+	}
+	
+	/**
+	 * Describes what has changed since the last time the journal was rendered
+	 */
+	public static class Update {
+		/** If <code>true</code>, the text replaces everything rendered so far. Otherwise it is to be appended. */
+		public final boolean isFullRender;
+		public final String text;
+		
+		/** To be applied in order, before the text is appended. Always empty for a full render. */
+		public final List<Replacement> replacements;
+		
+		Update(boolean isFullRender, String text, List<Replacement> replacements) {
+			this.isFullRender = isFullRender;
+			this.text = text;
+			this.replacements = replacements;
+		}
+	}
+
+	private Entry[] entries = new Entry[CAPACITY];
+	private int nextEntry = 0;
+	private int entryCount = 0;
+	
+	private List<Entry> addedSinceRender = new ArrayList<Entry>();
+	private boolean isRepeatedSinceRender = false;
+	private boolean isFullRenderNeeded = true; // Whatever was displayed before this journal existed must be replaced
+	private int renderedLength = 0;
+	
+	private SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss", Locale.US);
+	
+	
+	/**
+	 * Records an error
+	 */
+	public synchronized void record(Throwable error) {
+		String fingerprint = fingerprint(error);
+		long now = System.currentTimeMillis();
+		
+		for ( int i = 0; i < entryCount; i++ ) {
+			Entry entry = entries[i];
+			if ( entry.fingerprint.equals(fingerprint) ) {
+				entry.count++;
+				entry.lastSeen = now;
+				if ( entry.renderedStart >= 0 ) {
+					entry.isHeaderStale = true;
+					isRepeatedSinceRender = true;
+				}
+				return;
+			}
+		}
+		
+		Entry entry = new Entry();
+		entry.fingerprint = fingerprint;
+		entry.stackTrace = compactStackTrace(error);
+		entry.count = 1;
+		entry.firstSeen = entry.lastSeen = now;
+		
+		if ( entryCount == CAPACITY ) {
+			isFullRenderNeeded = true; // Dropping the oldest entry
+		}
+		else {
+			entryCount++;
+		}
+		entries[nextEntry] = entry;
+		nextEntry = (nextEntry + 1) % CAPACITY;
+		
+		addedSinceRender.add(entry);
+	}
+	
+	/**
+	 * @return Text to be displayed, or <code>null</code> if nothing changed since the last call 
+	 */
+	public synchronized Update pollUpdate() {
+		if ( isFullRenderNeeded ) {
+			StringBuilder text = new StringBuilder();
+			int oldestEntry = (nextEntry - entryCount + CAPACITY) % CAPACITY;
+			for ( int i = 0; i < entryCount; i++ ) {
+				render(entries[(oldestEntry + i) % CAPACITY], text, 0);
+			}
+			
+			markRendered(text.length());
+			return new Update(true, text.toString(), new ArrayList<Replacement>());
+		}
+		else if ( isRepeatedSinceRender || !addedSinceRender.isEmpty() ) {
+			List<Replacement> replacements = new ArrayList<Replacement>();
+			if ( isRepeatedSinceRender ) {
+				replaceStaleHeaders(replacements);
+			}
+			
+			StringBuilder text = new StringBuilder();
+			for ( Entry entry : addedSinceRender ) {
+				render(entry, text, renderedLength);
+			}
+			
+			markRendered(renderedLength + text.length());
+			return new Update(false, text.toString(), replacements);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Forgets all errors
+	 */
+	public synchronized void clear() {
+		for ( int i = 0; i < CAPACITY; i++ ) entries[i] = null;
+		nextEntry = 0;
+		entryCount = 0;
+		
+		markRendered(0);
+		isFullRenderNeeded = true;
+	}
+	
+	private void markRendered(int length) {
+		addedSinceRender.clear();
+		isRepeatedSinceRender = false;
+		isFullRenderNeeded = false;
+		renderedLength = length;
+	}
+	
+	/**
+	 * Renders the headers of the repeated entries again. Every new header can have a different length than the old one,
+	 * which moves all the entries that come after it.
+	 */
+	private void replaceStaleHeaders(List<Replacement> replacements) {
+		int shift = 0;
+		int oldestEntry = (nextEntry - entryCount + CAPACITY) % CAPACITY;
+		for ( int i = 0; i < entryCount; i++ ) {
+			Entry entry = entries[(oldestEntry + i) % CAPACITY];
+			if ( entry.renderedStart < 0 ) continue;
+			
+			entry.renderedStart += shift;
+			if ( entry.isHeaderStale ) {
+				String header = renderHeader(entry);
+				replacements.add(new Replacement(entry.renderedStart, entry.renderedStart + entry.renderedHeaderLength, header));
+				
+				shift += header.length() - entry.renderedHeaderLength;
+				entry.renderedHeaderLength = header.length();
+				entry.isHeaderStale = false;
+			}
+		}
+		
+		renderedLength += shift;
+	}
+	
+	/**
+	 * @param textStart Where <code>text</code> is going to start in the rendered text
+	 */
+	private void render(Entry entry, StringBuilder text, int textStart) {
+		String header = renderHeader(entry);
+		entry.renderedStart = textStart + text.length();
+		entry.renderedHeaderLength = header.length();
+		entry.isHeaderStale = false;
+		
+		text.append(header).append('\n').append(entry.stackTrace).append('\n');
+	}
+	
+	private String renderHeader(Entry entry) {
+		StringBuilder header = new StringBuilder(timeFormat.format(new Date(entry.lastSeen)));
+		if ( entry.count > 1 ) {
+			header.append("  (x").append(entry.count)
+				.append(" since ").append(timeFormat.format(new Date(entry.firstSeen))).append(')');
+		}
+		return header.toString();
+	}
+	
+	/**
+	 * Errors with the same types thrown from the same places get the same fingerprint. Messages are left out on purpose,
+	 * since they often contain details that change every time, such as timeouts. 
+	 */
+	private static String fingerprint(Throwable error) {
+		StringBuilder fingerprint = new StringBuilder();
+		int causes = 0;
+		for ( Throwable t = error; t != null && causes < MAX_CAUSES; t = t.getCause(), causes++ ) {
+			fingerprint.append(t.getClass().getName());
+			
+			StackTraceElement[] stack = t.getStackTrace();
+			if ( stack.length > 0 ) {
+				fingerprint.append('@').append(stack[0].getClassName())
+					.append('.').append(stack[0].getMethodName())
+					.append(':').append(stack[0].getLineNumber());
+			}
+			fingerprint.append('|');
+		}
+		
+		return fingerprint.toString();
+	}
+	
+	/**
+	 * Like <code>printStackTrace()</code>, but with a limited number of frames per cause 
+	 */
+	private static String compactStackTrace(Throwable error) {
+		StringBuilder trace = new StringBuilder();
+		int causes = 0;
+		for ( Throwable t = error; t != null && causes < MAX_CAUSES; t = t.getCause(), causes++ ) {
+			if ( causes > 0 ) trace.append("Caused by: ");
+			trace.append(t).append('\n');
+			
+			StackTraceElement[] stack = t.getStackTrace();
+			int frames = Math.min(stack.length, MAX_FRAMES_PER_CAUSE);
+			for ( int i = 0; i < frames; i++ ) {
+				trace.append("    at ").append(stack[i]).append('\n');
+			}
+			if ( stack.length > frames ) {
+				trace.append("    ... ").append(stack.length - frames).append(" more\n");
+			}
+		}
+		
+		return trace.toString();
+	}
+}
@@ -1,11 +1,25 @@
 package vace117.garage.opener;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.List;
 
-import vace117.garage.opener.secure.channel.crypto.AESChannelClient;
+import vace117.garage.opener.devices.GarageDevice;
+import vace117.garage.opener.devices.GarageRegistry;
+import vace117.garage.opener.devices.StatusFanOut;
+import vace117.garage.opener.secure.channel.CommunicationChannel;
+import vace117.garage.opener.secure.channel.crypto.AESFrameCodec;
 import vace117.garage.opener.secure.channel.network.InternetCommunicationChannel;
+import vace117.garage.opener.secure.channel.replay.RecordingCommunicationChannel;
+import vace117.garage.opener.secure.channel.replay.SessionLog;
 import vace117.garage.opener.secure.channel.test.TestChannelClient;
+import vace117.garage.opener.trace.HistoryStats;
+import vace117.garage.opener.trace.LatencyTracer;
+import vace117.garage.opener.trace.TraceStage;
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.res.AssetManager;
 import android.os.Bundle;
 import android.os.StrictMode;
@@ -13,23 +27,27 @@ import android.text.method.ScrollingMovementMethod;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.ViewGroup;
+import android.view.ViewStub;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.ProgressBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 /**
  * Main Garage Opener activity.
  * <p>
- * This application uses one activity, with many Views stacked on top of each other. Switching of "screens"
- * is achieved by hiding some Views while showing others. The views are arranged as follows, from bottom to the top:
+ * This application uses one activity, with a single view hierarchy (activity_garage_control). Switching of "screens"
+ * is achieved by hiding some Views while showing others. The screens are arranged as follows, from bottom to the top:
  * <ol>
- *  <li>activity_spinner</li>
+ *  <li>The connection spinner</li>
  *  <li>activity_error_log</li>
  *  <li>activity_door_image</li>
  *  <li>activity_door_animation</li>
  * </ol>
+ * All screens except for the spinner start out as ViewStubs, and are only inflated when they are first shown.
+ * Most runs never see the Error Log, for example.
  * 
  * @author Val Blant
  */
@@ -37,21 +55,44 @@ public class GarageControlActivity extends Activity {
     public static final int LAN_MODE_ID = Menu.FIRST;
     public static final int INTERNET_MODE_ID = Menu.FIRST + 1;
     public static final int TEST_MODE_ID = Menu.FIRST + 2;
+    public static final int EXPORT_TRACE_ID = Menu.FIRST + 3;
+    public static final int RECORD_SESSION_ID = Menu.FIRST + 4;
+    public static final int ALL_GARAGES_ID = Menu.FIRST + 5;
+    public static final int HISTORY_ID = Menu.FIRST + 6;
+    public static final int SNAPSHOT_ID = Menu.FIRST + 7;
+    public static final int FIRST_GARAGE_ID = Menu.FIRST + 100; // One item per door, if there is more than one
 
 	private static AssetManager assetManager;
 
 	private GarageDoorController controller;
+	
+	private static StartupWarmup startupWarmup;
+	
+	private boolean isRecordingSession = false;
+	private SessionLog.Writer sessionLog; // Open while a recorded controller is running
 
 	ProgressBar connectionProgressSpinner; // The spinner on the bottom view
-	View errorLogView; // The view that shows Stack Dumps
-	TextView exceptionText; // The TextView where Exception stack is printed
+	private View errorLogView; // The view that shows Stack Dumps. Inflated on first use.
+	private TextView exceptionText; // The TextView where Exception stack is printed
+	
+	private static final String HISTORY_FILE = "history.ring";
+	private static final String TEST_DOOR_ID = "test"; // The simulated door doesn't share its state with the real ones
 	
-	private InetSocketAddress internetSparkCore = new InetSocketAddress("vace.homelinux.com", 45666);
+	// The doors are in GarageRegistry. This is where WiFi mode reaches the selected one on the LAN.
 	private InetSocketAddress wifiSparkCore = new InetSocketAddress("192.168.7.121", 6666);
+	
+	/**
+	 * The door that Internet mode talks to. The first one in the registry, unless another one was picked from the menu.
+	 */
+	private static GarageDevice selectedDevice;
+	
+	private static final int MAX_PARALLEL_STATUS_REQUESTS = 4;
+	private static final long STATUS_DEADLINE = 5000; //ms, per door
+	private static StatusFanOut statusFanOut;
 
 	
 	static {
-		// Resolving the hostname of the Spark Core happens in InternetCommunicationChannel constructor. I don't
+		// Closing the connection to the Spark Core happens on the UI thread in onPause(). I don't
 		// want to make this asyncronous, so I am disabling the network ThreadPolicy check to avoid NetworkOnMainThreadException
 		//
 		StrictMode.ThreadPolicy policy = new StrictMode.ThreadPolicy.Builder().permitNetwork().build();
@@ -62,43 +103,128 @@ public class GarageControlActivity extends Activity {
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		final long startupStartTime = LatencyTracer.now();
 		
 	    //Remove title and notification bars
 		//
 	    this.requestWindowFeature(Window.FEATURE_NO_TITLE);
 	    this.getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN, WindowManager.LayoutParams.FLAG_FULLSCREEN);
 		
-	    // Start with a spinner screen
+	    // Start with a spinner screen. Everything else is a ViewStub for now.
 	    //
-		setContentView(R.layout.activity_spinner);
+		setContentView(R.layout.activity_garage_control);
 		connectionProgressSpinner = (ProgressBar) findViewById(R.id.connectionProgressSpinner);
 		
-		// Add the Error Log view on top, but hide it so we can still see the spinner
+		// Measure how long it takes until the first frame is on screen
 		//
-		errorLogView = getLayoutInflater().inflate(R.layout.activity_error_log, null);
-		addContentView(errorLogView, new ViewGroup.LayoutParams(
-            	ViewGroup.LayoutParams.MATCH_PARENT,
-            	ViewGroup.LayoutParams.MATCH_PARENT));
-		errorLogView.setVisibility(View.GONE);
-		exceptionText = (TextView) findViewById(R.id.exceptionLog);
-		exceptionText.setMovementMethod(new ScrollingMovementMethod());
+		final ViewTreeObserver viewTreeObserver = getWindow().getDecorView().getViewTreeObserver();
+		viewTreeObserver.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+			public boolean onPreDraw() {
+				if ( viewTreeObserver.isAlive() ) viewTreeObserver.removeOnPreDrawListener(this);
+				LatencyTracer.record(TraceStage.STARTUP, startupStartTime);
+				return true;
+			}
+		});
 		
 		// Expose AssetManager so MasterKey has access to the Resources from a static initializer 
 		assetManager = getResources().getAssets();
+		
+		// Get crypto, the Master Key and DNS ready in the background while the UI is coming up.
+		// This only needs to happen once per process.
+		//
+		if ( startupWarmup == null ) {
+			startupWarmup = new StartupWarmup(new File(getFilesDir(), HISTORY_FILE));
+			startupWarmup.start();
+		}
 	}
 	
 	/**
-	 * Starts the real controller that connects to the Spark Core 
+	 * Inflates one of the screens from its ViewStub the first time it is needed. Must be called on the UI thread.
+	 * 
+	 * @param stubId The ViewStub in activity_garage_control
+	 * @param screenId Id of the View that the stub turns into
+	 * @return The same View every time
 	 */
-	private void initRealGarageController(InetSocketAddress sparkCore) {
-		controller = new GarageDoorController(this, new AESChannelClient(new InternetCommunicationChannel(sparkCore)));
+	View getScreen(int stubId, int screenId) {
+		View screen = findViewById(screenId);
+		if ( screen == null ) {
+			screen = ((ViewStub) findViewById(stubId)).inflate();
+		}
+		return screen;
+	}
+	
+	/**
+	 * @return The TextView where Exception stack is printed. The Error Log screen is inflated, if needed.
+	 */
+	TextView getExceptionText() {
+		if ( errorLogView == null ) {
+			errorLogView = getScreen(R.id.errorLogStub, R.id.errorLogView);
+			errorLogView.setVisibility(View.GONE);
+			exceptionText = (TextView) errorLogView.findViewById(R.id.exceptionLog);
+			exceptionText.setMovementMethod(new ScrollingMovementMethod());
+		}
+		return exceptionText;
+	}
+	
+	void showErrorLog() {
+		getExceptionText();
+		errorLogView.setVisibility(View.VISIBLE);
+	}
+	
+	/**
+	 * Doesn't inflate the Error Log if it was never shown
+	 */
+	void hideErrorLog() {
+		if ( errorLogView != null ) {
+			errorLogView.setVisibility(View.GONE);
+		}
+	}
+	
+	/**
+	 * Starts the real controller that connects to the Spark Core of the given door
+	 */
+	private void initRealGarageController(GarageDevice device) {
+		DoorStateStore.migrateLegacyState(this, GarageRegistry.getInstance().getDefaultDevice().getKeyId());
+		
+		CommunicationChannel channel = new InternetCommunicationChannel(device.getEndpoint());
+		if ( isRecordingSession ) {
+			channel = startRecording(channel, device);
+		}
+		
+		controller = new GarageDoorController(this, device.createClient(channel), device.getKeyId());
+	}
+	
+	/**
+	 * @return The door that Internet mode talks to
+	 */
+	private static GarageDevice getSelectedDevice() {
+		if ( selectedDevice == null ) {
+			selectedDevice = GarageRegistry.getInstance().getDefaultDevice();
+		}
+		return selectedDevice;
+	}
+	
+	/**
+	 * Wraps the channel, so the session gets recorded into a new log file that can be replayed with <code>SessionReplay</code>
+	 * 
+	 * @return The channel to use, which is the original one if the log file can't be created
+	 */
+	private CommunicationChannel startRecording(CommunicationChannel channel, GarageDevice device) {
+		File logFile = new File(getExportDirectory(), "session-" + System.currentTimeMillis() + ".log");
+		try {
+			sessionLog = new SessionLog.Writer(new FileOutputStream(logFile));
+			return new RecordingCommunicationChannel(channel, new AESFrameCodec(device.getKeys()), sessionLog);
+		} catch (IOException e) {
+			Toast.makeText(this, "Unable to record session: " + e.getMessage(), Toast.LENGTH_LONG).show();
+			return channel;
+		}
 	}
 
 	/**
 	 * Starts a test controller that connects to a state machine that simulates the garage door
 	 */
 	private void initTestGarageController() {
-		controller = new GarageDoorController(this, new TestChannelClient(null));
+		controller = new GarageDoorController(this, new TestChannelClient(null), TEST_DOOR_ID);
 	}
 
 	/**
@@ -111,6 +237,18 @@ public class GarageControlActivity extends Activity {
 		menu.add(0, LAN_MODE_ID, 0, "WiFi");
 		menu.add(0, INTERNET_MODE_ID, 0, "Internet");
 		menu.add(0, TEST_MODE_ID, 0, "Test Mode");
+		menu.add(0, EXPORT_TRACE_ID, 0, "Export Trace");
+		menu.add(0, RECORD_SESSION_ID, 0, "Record Session").setCheckable(true);
+		menu.add(0, HISTORY_ID, 0, "History");
+		menu.add(0, SNAPSHOT_ID, 0, "Snapshot");
+		
+		List<GarageDevice> devices = GarageRegistry.getInstance().getDevices();
+		if ( devices.size() > 1 ) {
+			menu.add(0, ALL_GARAGES_ID, 0, "All Garages");
+			for ( int i = 0; i < devices.size(); i++ ) {
+				menu.add(0, FIRST_GARAGE_ID + i, 0, devices.get(i).getName());
+			}
+		}
 		
 		return true;
 	}
@@ -120,14 +258,47 @@ public class GarageControlActivity extends Activity {
 	 */
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+    	if ( item.getItemId() == EXPORT_TRACE_ID ) {
+    		exportLatencyTrace();
+    		return true;
+    	}
+    	if ( item.getItemId() == RECORD_SESSION_ID ) {
+    		isRecordingSession = !item.isChecked();
+    		item.setChecked(isRecordingSession);
+    		Toast.makeText(this, "Recording will " + (isRecordingSession ? "start" : "stop") + " with the next connection", Toast.LENGTH_SHORT).show();
+    		return true;
+    	}
+    	if ( item.getItemId() == HISTORY_ID ) {
+    		showHistory();
+    		return true;
+    	}
+    	if ( item.getItemId() == SNAPSHOT_ID ) {
+    		if ( controller != null ) controller.requestSnapshot();
+    		return true;
+    	}
+    	if ( item.getItemId() == ALL_GARAGES_ID ) {
+    		showAllGarages();
+    		return true;
+    	}
+    	
+    	List<GarageDevice> devices = GarageRegistry.getInstance().getDevices();
+    	int garageIndex = item.getItemId() - FIRST_GARAGE_ID;
+    	if ( garageIndex >= 0 && garageIndex < devices.size() ) {
+    		selectedDevice = devices.get(garageIndex);
+    		cleanupController();
+    		initRealGarageController(selectedDevice);
+    		startController();
+    		return true;
+    	}
+    	
     	cleanupController();
     	
         switch ( item.getItemId() ) {
 	        case LAN_MODE_ID:
-	        	initRealGarageController(wifiSparkCore);
+	        	initRealGarageController(getSelectedDevice().at(wifiSparkCore));
 	            break;
 	        case INTERNET_MODE_ID:
-	        	initRealGarageController(internetSparkCore);
+	        	initRealGarageController(getSelectedDevice());
 	            break;
 	        case TEST_MODE_ID:
 	        	initTestGarageController();
@@ -152,13 +323,23 @@ public class GarageControlActivity extends Activity {
 			controller.stop();
 			controller = null;
 		}
+		
+		if ( sessionLog != null ) {
+			try {
+				sessionLog.close();
+			} catch (IOException e) {
+				// Nothing to be done. The log is only missing its last events.
+			}
+			sessionLog = null;
+		}
 	}
 
 	private void startController() {
 		if ( controller == null ) {
-			initRealGarageController(internetSparkCore);
+			initRealGarageController(getSelectedDevice());
 		}
 		
+		final GarageDoorController controller = this.controller;
 		new Thread(new Runnable() {
 	        public void run() {
 	        	controller.start();
@@ -166,6 +347,72 @@ public class GarageControlActivity extends Activity {
 	    }).start();
 	}
 
+	/**
+	 * Asks every door for its status at the same time, and shows all of them at once
+	 */
+	private void showAllGarages() {
+		if ( statusFanOut == null ) {
+			statusFanOut = new StatusFanOut(MAX_PARALLEL_STATUS_REQUESTS, STATUS_DEADLINE);
+		}
+		
+		final StatusFanOut statusFanOut = GarageControlActivity.statusFanOut;
+		new Thread(new Runnable() {
+			public void run() {
+				final StringBuilder report = new StringBuilder();
+				try {
+					for ( StatusFanOut.DeviceStatus status : statusFanOut.refresh(GarageRegistry.getInstance().getDevices()) ) {
+						report.append(status).append('\n');
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				runOnUiThread(new Runnable() {
+					public void run() {
+						Toast.makeText(GarageControlActivity.this, report.toString().trim(), Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		}).start();
+	}
+
+	/**
+	 * Shows how the door and the network have been doing over the last week
+	 */
+	private void showHistory() {
+		String summary;
+		try {
+			HistoryStats stats = HistoryStats.current();
+			summary = stats == null ? "No history yet" : stats.summarize(System.currentTimeMillis() - HistoryStats.WEEK);
+		} catch (IOException e) {
+			summary = "Unable to read history: " + e.getMessage();
+		}
+		Toast.makeText(this, summary, Toast.LENGTH_LONG).show();
+	}
+
+	/**
+	 * Saves the latency trace ring buffer to a file, so it can be pulled off the device for analysis
+	 */
+	private void exportLatencyTrace() {
+		File traceFile = new File(getExportDirectory(), "latency-trace.csv");
+		try {
+			int spanCount = LatencyTracer.exportTo(traceFile);
+			Toast.makeText(this, "Exported " + spanCount + " spans to " + traceFile, Toast.LENGTH_LONG).show();
+		} catch (IOException e) {
+			Toast.makeText(this, "Unable to export trace: " + e.getMessage(), Toast.LENGTH_LONG).show();
+		}
+	}
+
+	/**
+	 * @return Where to put files that are meant to be pulled off the device
+	 */
+	private File getExportDirectory() {
+		File directory = getExternalFilesDir(null);
+		if ( directory == null ) directory = getFilesDir(); // External storage is not mounted
+		
+		return directory;
+	}
+
 	/**
 	 * Expose AssetManager so MasterKey has access to the Resources from a static initializer 
 	 */
@@ -185,5 +432,22 @@ public class GarageControlActivity extends Activity {
 		cleanupController();
     }
 
+	/**
+	 * The door images are only worth keeping while the process is near the top of the list of background processes
+	 */
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if ( level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ) {
+			DoorBitmapCache.getInstance().clear();
+		}
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		DoorBitmapCache.getInstance().clear();
+	}
+
 	
 }
@@ -1,271 +1,229 @@
 package vace117.garage.opener;
 
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import vace117.garage.opener.DoorAnimationManager.DoorAnimationListener;
 import vace117.garage.opener.DoorPictureManager.DoorImageListener;
-import vace117.garage.opener.secure.channel.Conversation;
-import vace117.garage.opener.secure.channel.ConversationExpiredException;
+import vace117.garage.opener.engine.DoorControllerEngine;
+import vace117.garage.opener.engine.DoorSnapshot;
+import vace117.garage.opener.engine.DoorStateListener;
+import vace117.garage.opener.engine.DoorStatePublisher;
+import vace117.garage.opener.engine.DoorViewPort;
+import vace117.garage.opener.engine.GarageDoorState;
 import vace117.garage.opener.secure.channel.AbstractSecureChannelClient;
-import android.util.Log;
+import android.os.SystemClock;
+import android.text.Editable;
 import android.view.View;
+import android.widget.TextView;
 
 /**
  * Controller that displays Garage Door status using some animations and pictures,
- * as well as sending commands to the Spark Core that controls the actual garage door. 
+ * as well as sending commands to the Spark Core that controls the actual garage door.
+ * <p>
+ * The door state machine itself lives in <code>DoorControllerEngine</code>. This class is the
+ * Android <code>DoorViewPort</code> for it. Anything else that follows the door, like the accessibility description,
+ * subscribes to the engine's <code>DoorStatePublisher</code>.
  *
  * @author Val Blant
  */
-public class GarageDoorController implements DoorImageListener, DoorAnimationListener {
-	private static final String TAG = "GarageDoorController";
-	
+public class GarageDoorController implements DoorViewPort, DoorImageListener, DoorAnimationListener {
 	private GarageControlActivity activity;
-	
-	private AbstractSecureChannelClient secureChannel;
-	
+
+	private DoorControllerEngine engine;
+	private ScheduledExecutorService executor;
+
 	private DoorAnimationManager doorAnimationManager;
 	private DoorPictureManager doorPictureManager;
-
-	enum GarageDoorState {OPEN, CLOSED, MOVING};
-	private GarageDoorState doorState;
+	private DoorStatePublisher.Subscription doorDescription;
+	private SnapshotView snapshotView;
 	
+	private final Executor uiThread = new Executor() {
+		public void execute(Runnable task) {
+			activity.runOnUiThread(task);
+		}
+	};
+
+
 	/**
-	 * This complication allows us not to wait for the door to stop moving, before we decide
-	 * whether to play the open or close animation. Since we can't actually tell if the door is 
-	 * opening or closing while its moving, we have to guess based on the previous state of the door.
-	 * 
-	 * Not waiting for the door to stop moving before playing the animation is useful, b/c we can have 
-	 * the animation be roughly in sync with the movement of the physical door.
-	 * 
-	 * The true state of the door will be requested after the animation is finished. 
+	 * @param doorId Identifies the door the channel talks to. The state of every door is remembered separately.
 	 */
-	private GarageDoorState predictedDoorStateAfterMovement;
-	
-	
-	public GarageDoorController(GarageControlActivity activity, AbstractSecureChannelClient secureChannel) {
+	public GarageDoorController(GarageControlActivity activity, AbstractSecureChannelClient secureChannel, String doorId) {
 		this.activity = activity;
-		this.secureChannel = secureChannel;
-		
+
 		doorAnimationManager = new DoorAnimationManager(activity, this);
 		doorPictureManager = new DoorPictureManager(activity, this);
+		snapshotView = new SnapshotView(activity);
+
+		executor = Executors.newScheduledThreadPool(2);
+		engine = new DoorControllerEngine(secureChannel, this, new DoorStateStore(activity, doorId), executor);
+		
+		doorDescription = engine.getDoorStates().subscribe(new DoorStateListener() {
+			public void doorStateChanged(DoorSnapshot state) {
+				doorPictureManager.describeDoor(state);
+			}
+		}, uiThread);
 	}
-	
-	
+
+
+
 	public void start() {
+		engine.start();
+	}
+
+	public void stop() {
 		try {
-			resetScreenStates();
-			updateDoorStatus( sendCommand("GET_STATUS") );
-		}
-		catch (Throwable e) {
-			displayErrorLog(e);
+			doorDescription.cancel();
+			engine.stop();
+			showConnecting();
+			doorPictureManager.removeView();
+			doorAnimationManager.release();
+			snapshotView.release();
 		}
-	}
-	
-	private synchronized void updateDoorStatus(String newStatus) throws IOException {
-		if ( "DOOR_MOVING".equals(newStatus) ) {
-			if ( doorState == GarageDoorState.CLOSED ) {
-				predictedDoorStateAfterMovement = GarageDoorState.OPEN;
-				startProgressBar();
-			}
-			else if ( doorState == GarageDoorState.OPEN ) {
-				predictedDoorStateAfterMovement = GarageDoorState.CLOSED;
-				startProgressBar();
-			}
-			
-			doorState = GarageDoorState.MOVING;
+		catch (Exception e) {
+			showError(e);
 		}
-		else if ( "DOOR_OPEN".equals(newStatus) ) {
-			stopTimer();
-			if ( doorState == GarageDoorState.MOVING) {
-				if ( predictedDoorStateAfterMovement.equals(GarageDoorState.OPEN) ) {
-					doorAnimationManager.openDoor();
-				}
-				else if ( predictedDoorStateAfterMovement.equals(GarageDoorState.CLOSED) ) {
-					doorAnimationManager.closeDoor();
-				} 
-				
-				predictedDoorStateAfterMovement = null;
-			}
-			else {
-				doorPictureManager.showOpenDoor();
-			}
-			
-			doorState = GarageDoorState.OPEN;
+		finally {
+			executor.shutdownNow();
 		}
-		else if ( "DOOR_CLOSED".equals(newStatus) ) {
-			stopTimer();
-			if ( doorState == GarageDoorState.MOVING) {
-				doorAnimationManager.closeDoor();
-				
-				predictedDoorStateAfterMovement = null;
-			}
-			else {
-				doorPictureManager.showClosedDoor();
-			}
+	}
 
-			doorState = GarageDoorState.CLOSED;
-		}
+	/**
+	 * Shows a picture of the door from the garage camera, which fills in as it arrives
+	 */
+	public void requestSnapshot() {
+		snapshotView.show();
+		engine.requestSnapshot(snapshotView);
 	}
-	
 
-	private int knockCount = 0; 
-	private Timer knockTimer;
-	
 	@Override
 	public void doorClicked() {
-		// Enforce that the clicks happen within 800ms
-		//
-		if ( knockTimer == null ) {
-			knockTimer = new Timer("Knock Timer");
-			knockTimer.schedule(new TimerTask() {
-				@Override
-				public void run() {
-					Log.v(TAG, "Knock too slow - expiring wait period.");
-					knockCount = 0;
-					knockTimer = null;
-				}
-			}, 800);
-		}
-		
-		if ( ++knockCount == 3 ) {
-		    new Thread(new Runnable() {
-		        public void run() {
-		        	try {
-						doorPictureManager.setEnabled(false); // Disable clicks
-						
-			        	if ( GarageDoorState.OPEN.equals( doorState ) ) {
-			    			updateDoorStatus( sendCommand("CLOSE") );
-			        	}
-			        	else if ( GarageDoorState.CLOSED.equals( doorState ) ) {
-			    			updateDoorStatus( sendCommand("OPEN") );
-			        	}
-			        	
-			        	knockCount = 0;
-		        	}
-		        	catch (Throwable e) {
-		        		displayErrorLog(e);
-		        	}
-		        }
-		    }).start();
-		}
+		engine.doorClicked(SystemClock.uptimeMillis());
 	}
 
 	@Override
 	public void animationCompleted() {
-	    new Thread(new Runnable() {
-	        public void run() {
-	    		try {
-	    			doorAnimationManager.hide();
-	    			
-	    			Log.v(TAG, "Scheduled GET_STATUS");
-	    			updateDoorStatus( sendCommand("GET_STATUS") );
-	    		}
-	        	catch (Throwable e) {
-	        		displayErrorLog(e);
-	        	}
-	        }
-	    }).start();
+		engine.animationCompleted();
 	}
 
 
-	
-	
-	
-	private void resetScreenStates() {
+	@Override
+	public void showConnecting() {
 		activity.runOnUiThread(new Runnable() {
 			public void run() {
-				activity.connectionProgressSpinner.setVisibility(View.VISIBLE);				
-				activity.errorLogView.setVisibility(View.GONE);
+				activity.connectionProgressSpinner.setVisibility(View.VISIBLE);
+				activity.hideErrorLog();
 				if (doorAnimationManager != null) doorAnimationManager.hide();
 				if (doorPictureManager != null) doorPictureManager.hide();
 			}
 		});
 	}
-	
-	private void disconnectFromGarage() throws IOException {
-		secureChannel.closeCommunicationChannel();
-		resetScreenStates();
-		doorPictureManager.removeView();
-	}
 
-	
-	public void stop() {
-		try {
-			disconnectFromGarage();
-		}
-		catch (Exception e) {
-			displayErrorLog(e);
-		}
+	@Override
+	public void showStaleDoor(GarageDoorState lastKnownState) {
+		doorPictureManager.showStaleDoor( GarageDoorState.OPEN.equals(lastKnownState) );
 	}
-	
-	private synchronized String sendCommand(String command) {
-		try {
-			secureChannel.openCommunicationChannel();
-			
-			Conversation conversation = secureChannel.createConversation();
-			String response = conversation.sendMessage(command);
-			
-			return response;
-		} catch (ConversationExpiredException e) {
-			throw new IllegalStateException("Conversation Token not accepted", e);
-		} catch (Exception e) {
-			throw new IllegalStateException("Unable to send message", e);
+
+	@Override
+	public void showDoor(GarageDoorState state) {
+		if ( GarageDoorState.OPEN.equals(state) ) {
+			doorPictureManager.showOpenDoor();
 		}
-		finally {
-			try {
-				secureChannel.closeCommunicationChannel();
-			} catch (IOException e) {
-				throw new IllegalStateException("Unable to close Communication Channel", e);
-			}
+		else {
+			doorPictureManager.showClosedDoor();
 		}
-		
 	}
-	
-	private Timer movingDoorTimer;
-	private void stopTimer() {
-		if ( movingDoorTimer != null) movingDoorTimer.cancel();
+
+	@Override
+	public void disableDoor() {
+		doorPictureManager.setEnabled(false);
 	}
-	
-	private void startProgressBar() {
+
+	@Override
+	public void startProgressAnimation() {
 		doorAnimationManager.startProgressBar();
-		
-		// Start a timer that will query the door status while the door is moving
-		// and the progress bar video is playing.
-		//
-		movingDoorTimer = new Timer();
-		movingDoorTimer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				try {
-					Log.v(TAG, "Scheduled GET_STATUS");
-					updateDoorStatus( sendCommand("GET_STATUS") );
-				}
-		    	catch (Throwable e) {
-		    		displayErrorLog(e);
-		    	}
-			}
-		}, 0, 2000); // Every 2 seconds
-		
 	}
-	
-	private void displayErrorLog(final Throwable e) {
+
+	@Override
+	public void playOpenAnimation() {
+		doorAnimationManager.openDoor();
+	}
+
+	@Override
+	public void playCloseAnimation() {
+		doorAnimationManager.closeDoor();
+	}
+
+	@Override
+	public boolean playSyncedAnimation(GarageDoorState targetState, long durationMillis) {
+		int videoId = GarageDoorState.OPEN.equals(targetState) ? R.raw.open_video : R.raw.close_video;
+		return doorAnimationManager.playSynced(videoId, durationMillis);
+	}
+
+	@Override
+	public void hideAnimation() {
+		doorAnimationManager.hide();
+	}
+
+	@Override
+	public void preloadAnimationFor(GarageDoorState nextState) {
+		switch ( nextState ) {
+			case MOVING:
+				doorAnimationManager.preload(R.raw.loading_screen_loop_flipped);
+				break;
+			case OPEN:
+				doorAnimationManager.preload(R.raw.open_video);
+				break;
+			case CLOSED:
+				doorAnimationManager.preload(R.raw.close_video);
+				break;
+		}
+	}
+
+
+	private ErrorJournal errorJournal = new ErrorJournal();
+	private AtomicBoolean isErrorLogRenderPending = new AtomicBoolean(false);
+
+	/**
+	 * Records the error and shows the Error Log screen.
+	 * <p>
+	 * Any number of errors reported before the UI thread gets around to rendering are rendered together, once.
+	 */
+	@Override
+	public void showError(final Throwable e) {
+		errorJournal.record(e);
+
+		if ( !isErrorLogRenderPending.compareAndSet(false, true) ) {
+			return; // The pending render will pick this error up
+		}
+
 		activity.runOnUiThread(new Runnable() {
 	        public void run() {
+	        	isErrorLogRenderPending.set(false);
+
 	        	activity.connectionProgressSpinner.setVisibility(View.GONE);
 	        	doorAnimationManager.hide();
 	        	doorPictureManager.hide();
-	    		activity.errorLogView.setVisibility(View.VISIBLE);
-	    		
-	    		StringWriter errors = new StringWriter();
-	    		e.printStackTrace(new PrintWriter(errors));
-	    		activity.exceptionText.setText( errors.toString() );
+	    		activity.showErrorLog();
+
+	    		ErrorJournal.Update update = errorJournal.pollUpdate();
+	    		if ( update != null ) {
+	    			if ( update.isFullRender ) {
+	    				activity.getExceptionText().setText( update.text, TextView.BufferType.EDITABLE );
+	    			}
+	    			else {
+	    				Editable log = activity.getExceptionText().getEditableText();
+	    				for ( ErrorJournal.Replacement replacement : update.replacements ) {
+	    					log.replace( replacement.start, replacement.end, replacement.text );
+	    				}
+	    				log.append( update.text );
+	    			}
+	    		}
 	        }
 	    });
 	}
-	
-	
+
+
 }
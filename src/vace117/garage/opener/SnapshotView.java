@@ -0,0 +1,158 @@
+package vace117.garage.opener;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import vace117.garage.opener.secure.channel.SnapshotListener;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.DisplayMetrics;
+import android.view.View;
+import android.widget.ImageView;
+
+/**
+ * Shows a camera snapshot of the door while it is still streaming in.
+ * <p>
+ * Every chunk triggers a decode of everything received so far, on a background thread. A JPEG that is cut short still
+ * decodes: a progressive one comes out as a blurry picture of the whole door, and a baseline one as the top of the picture.
+ * These previews are decoded at a lower resolution, which is all they have anyway, and much faster. The complete
+ * image is decoded at the size of the screen.
+ * <p>
+ * Decoding is slower than a fast network, so chunks that arrive while a decode is running are not decoded one by one.
+ * The next decode simply picks up everything that has arrived by then.
+ * <p>
+ * The ImageView is inflated from its ViewStub the first time a snapshot is shown, and tapping it hides it.
+ *
+ * @author Val Blant
+ */
+public class SnapshotView implements SnapshotListener {
+	/**
+	 * Not worth decoding before the JPEG headers and a bit of the first scan are in
+	 */
+	private static final int MIN_PREVIEW_LENGTH = 4096;
+
+	/**
+	 * Previews are this many times smaller than the final picture
+	 */
+	private static final int PREVIEW_SAMPLE_SIZE = 4;
+
+	private GarageControlActivity activity;
+	private ImageView snapshotImage; // Only touched on the UI thread
+
+	private final ExecutorService decoder = Executors.newSingleThreadExecutor();
+	private final AtomicReference<Progress> latestProgress = new AtomicReference<Progress>();
+	private final AtomicBoolean isDecodePending = new AtomicBoolean(false);
+
+	/**
+	 * What has arrived so far
+	 */
+	private static class Progress {
+		final byte[] image;
+		final int receivedLength;
+		final int totalLength;
+
+		Progress(byte[] image, int receivedLength, int totalLength) {
+			this.image = image;
+			this.receivedLength = receivedLength;
+			this.totalLength = totalLength;
+		}
+
+		boolean isComplete() {
+			return receivedLength == totalLength;
+		}
+	}
+
+
+	public SnapshotView(GarageControlActivity activity) {
+		this.activity = activity;
+	}
+
+	/**
+	 * Shows an empty view, until the first preview is ready
+	 */
+	public void show() {
+		activity.runOnUiThread(new Runnable() {
+			public void run() {
+				if ( snapshotImage == null ) {
+					snapshotImage = (ImageView) activity.getScreen(R.id.snapshotStub, R.id.snapshotImage);
+					snapshotImage.setOnClickListener(new View.OnClickListener() {
+						public void onClick(View v) {
+							v.setVisibility(View.GONE);
+						}
+					});
+				}
+
+				snapshotImage.setImageBitmap(null);
+				snapshotImage.setVisibility(View.VISIBLE);
+			}
+		});
+	}
+
+	@Override
+	public void snapshotReceived(byte[] image, int receivedLength, int totalLength) {
+		if ( receivedLength < MIN_PREVIEW_LENGTH && receivedLength < totalLength ) {
+			return;
+		}
+
+		latestProgress.set(new Progress(image, receivedLength, totalLength));
+
+		if ( !isDecodePending.compareAndSet(false, true) ) {
+			return; // The pending decode will pick this chunk up
+		}
+
+		decoder.execute(new Runnable() {
+			public void run() {
+				isDecodePending.set(false);
+				decode(latestProgress.get());
+			}
+		});
+	}
+
+	/**
+	 * Hides the view and stops decoding
+	 */
+	public void release() {
+		decoder.shutdownNow();
+
+		activity.runOnUiThread(new Runnable() {
+			public void run() {
+				if ( snapshotImage != null ) {
+					snapshotImage.setVisibility(View.GONE);
+					snapshotImage.setImageBitmap(null);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs on the decoder thread
+	 */
+	private void decode(Progress progress) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(progress.image, 0, progress.receivedLength, options);
+		if ( options.outWidth <= 0 ) return; // The headers aren't all in yet
+
+		DisplayMetrics screen = activity.getResources().getDisplayMetrics();
+		int sampleSize = DoorBitmapCache.calculateSampleSize(options.outWidth, options.outHeight, screen.widthPixels, screen.heightPixels);
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = progress.isComplete() ? sampleSize : sampleSize * PREVIEW_SAMPLE_SIZE;
+		final Bitmap bitmap = BitmapFactory.decodeByteArray(progress.image, 0, progress.receivedLength, options);
+		if ( bitmap == null ) return;
+
+		// No point in showing a preview when the complete picture is next in line
+		//
+		if ( !progress.isComplete() && latestProgress.get().isComplete() ) return;
+
+		activity.runOnUiThread(new Runnable() {
+			public void run() {
+				if ( snapshotImage != null ) {
+					snapshotImage.setImageBitmap(bitmap);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,124 @@
+package vace117.garage.opener;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+import vace117.garage.opener.devices.GarageDevice;
+import vace117.garage.opener.devices.GarageRegistry;
+import vace117.garage.opener.secure.channel.crypto.BufferedEntropySource;
+import vace117.garage.opener.secure.channel.crypto.MasterKey;
+import vace117.garage.opener.trace.DoorHistory;
+import android.util.Log;
+
+/**
+ * Gets the expensive one-time work out of the way while the UI is coming up, so that the first GET_STATUS finds everything hot.
+ * <p>
+ * Installing the PRNG fixes, reading the Master Key, looking up the AES and HMAC providers and resolving the addresses of
+ * the Spark Cores, and mapping the history file don't depend on each other, so they all run at the same time, each on its own background thread.
+ * <p>
+ * Nobody waits for the warmup. Whatever isn't warm yet when the first GET_STATUS needs it is done on the critical path,
+ * or waited for there, e.g. the key of the selected door in <code>KeyRegistry</code>.
+ * <p>
+ * Failures are only logged. The same work is repeated on the critical path, which reports the error properly.
+ *
+ * @author Val Blant
+ */
+public class StartupWarmup {
+	private static final String TAG = "StartupWarmup";
+
+	private final File historyFile;
+
+	private ExecutorService executor;
+
+
+	/**
+	 * @param historyFile Where <code>DoorHistory</code> is kept
+	 */
+	public StartupWarmup(File historyFile) {
+		this.historyFile = historyFile;
+	}
+
+	/**
+	 * Starts all of the steps and returns immediately. The Master Key and the doors are read from the assets, so
+	 * <code>GarageControlActivity.getAssetManager()</code> must be available by now.
+	 */
+	public synchronized void start() {
+		if ( executor != null ) return;
+
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Startup Warmup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		startStep("PRNG fixes and entropy", new Runnable() {
+			public void run() {
+				BufferedEntropySource.getInstance().nextBytes(new byte[16]); // Applies the fixes and fills the first block
+			}
+		});
+
+		startStep("Master Key", new Runnable() {
+			public void run() {
+				MasterKey.load();
+			}
+		});
+
+		startStep("AES and HMAC providers", new Runnable() {
+			public void run() {
+				try {
+					Cipher.getInstance("AES/CBC/PKCS7Padding");
+					Mac.getInstance("HmacSHA1");
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+
+		startStep("Garage registry and DNS", new Runnable() {
+			public void run() {
+				try {
+					for ( GarageDevice device : GarageRegistry.getInstance().getDevices() ) {
+						InetAddress.getByName(device.getEndpoint().getHostName()); // The result stays in the system's DNS cache
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+
+		startStep("Door history", new Runnable() {
+			public void run() {
+				try {
+					DoorHistory.open(historyFile, DoorHistory.DEFAULT_CAPACITY);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+
+		executor.shutdown(); // The threads go away once everything is warm
+	}
+
+	private void startStep(final String name, final Runnable step) {
+		executor.execute(new Runnable() {
+			public void run() {
+				long startTime = System.nanoTime();
+				try {
+					step.run();
+					Log.d(TAG, name + " warmed up in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+				}
+				catch (RuntimeException e) {
+					Log.w(TAG, name + " warmup failed: " + e.getMessage()); // Nobody is waiting for it, so that's all
+				}
+			}
+		});
+	}
+}
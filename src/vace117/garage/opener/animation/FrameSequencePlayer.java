@@ -0,0 +1,253 @@
+package vace117.garage.opener.animation;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+/**
+ * Plays a <code>SpriteSheet</code> onto a <code>SurfaceHolder</code>, as a lightweight alternative to MediaPlayer.
+ * <p>
+ * The frames are already decoded, so playback starts instantly. The frame to draw is computed from the elapsed time,
+ * which makes seeking frame-accurate and allows the playback speed to be changed at any time. If drawing falls behind,
+ * frames are skipped rather than slowing the animation down.
+ * <p>
+ * Frames are drawn by a single render thread that lives as long as the player and sleeps when nothing is playing.
+ *
+ * @author Val Blant
+ */
+public class FrameSequencePlayer {
+	private static final String TAG = "FrameSequencePlayer";
+	
+	/**
+	 * Tells the caller that a non-looping sequence has shown its last frame
+	 */
+	public interface FrameSequenceListener {
+		/**
+		 * Called on the render thread
+		 */
+		public void sequenceCompleted(FrameSequencePlayer player);
+	}
+	
+	private final Object lock = new Object();
+	
+	// Everything below is guarded by lock
+	//
+	private SurfaceHolder surfaceHolder;
+	private SpriteSheet sequence;
+	private boolean isLooping;
+	private FrameSequenceListener listener;
+	
+	private boolean isPlaying = false;
+	private boolean isReleased = false;
+	
+	private float playbackSpeed = 1f;
+	private double anchorPosition; // In frames
+	private long anchorTime;       // In ns
+	private int lastDrawnFrame = -1;
+	
+	private final Rect sourceBounds = new Rect();
+	private final Rect targetBounds = new Rect();
+	private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	
+	private Thread renderThread;
+
+	
+	/**
+	 * Starts playing the sequence from the first frame
+	 * 
+	 * @param sequence
+	 * @param surfaceHolder Where to draw. The surface must stay valid until <code>stop()</code> is called.
+	 * @param isLooping If <code>true</code>, the sequence starts over after the last frame. Otherwise, the listener is called.
+	 * @param listener
+	 */
+	public void play(SpriteSheet sequence, SurfaceHolder surfaceHolder, boolean isLooping, FrameSequenceListener listener) {
+		synchronized (lock) {
+			this.sequence = sequence;
+			this.surfaceHolder = surfaceHolder;
+			this.isLooping = isLooping;
+			this.listener = listener;
+			
+			anchorPosition = 0;
+			anchorTime = System.nanoTime();
+			lastDrawnFrame = -1;
+			isPlaying = true;
+			isReleased = false;
+			
+			startRenderThread();
+			lock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Stops drawing. When this returns, the render thread is guaranteed not to touch the surface anymore.
+	 */
+	public void stop() {
+		synchronized (lock) {
+			isPlaying = false;
+			surfaceHolder = null;
+			lock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Stops playback and ends the render thread
+	 */
+	public void release() {
+		synchronized (lock) {
+			stop();
+			isReleased = true;
+			sequence = null;
+		}
+	}
+	
+	/**
+	 * Jumps to the given frame. Playback continues from there at the current speed.
+	 */
+	public void seekToFrame(int frame) {
+		synchronized (lock) {
+			if ( sequence == null ) return;
+			
+			anchorPosition = Math.max(0, Math.min(frame, sequence.getFrameCount() - 1));
+			anchorTime = System.nanoTime();
+			lastDrawnFrame = -1;
+			lock.notifyAll();
+		}
+	}
+	
+	/**
+	 * @param speed 1 is normal speed, 2 is twice as fast, 0.5 is half as fast
+	 */
+	public void setPlaybackSpeed(float speed) {
+		if ( speed <= 0 ) {
+			throw new IllegalArgumentException("Playback speed must be positive: " + speed);
+		}
+		
+		synchronized (lock) {
+			// Continue from the current position, so the change doesn't cause a jump
+			//
+			long now = System.nanoTime();
+			anchorPosition = currentPosition(now);
+			anchorTime = now;
+			playbackSpeed = speed;
+			lock.notifyAll();
+		}
+	}
+	
+	public float getPlaybackSpeed() {
+		synchronized (lock) {
+			return playbackSpeed;
+		}
+	}
+	
+	/**
+	 * @return The frame that is on screen now
+	 */
+	public int getCurrentFrame() {
+		synchronized (lock) {
+			return lastDrawnFrame;
+		}
+	}
+	
+	public boolean isPlaying() {
+		synchronized (lock) {
+			return isPlaying;
+		}
+	}
+	
+	
+	private double currentPosition(long now) {
+		return anchorPosition + (now - anchorTime) / 1e9 * sequence.getFrameRate() * playbackSpeed;
+	}
+	
+	private void startRenderThread() {
+		if ( renderThread == null ) {
+			renderThread = new Thread(new Runnable() {
+				public void run() {
+					renderLoop();
+				}
+			}, "Frame Sequence Renderer");
+			renderThread.setDaemon(true);
+			renderThread.start();
+		}
+	}
+	
+	private void renderLoop() {
+		try {
+			while ( true ) {
+				FrameSequenceListener completedListener = null;
+				
+				synchronized (lock) {
+					while ( !isPlaying && !isReleased ) {
+						lock.wait();
+					}
+					if ( isReleased ) {
+						renderThread = null;
+						return;
+					}
+					
+					int frameCount = sequence.getFrameCount();
+					int frame = (int) currentPosition(System.nanoTime());
+					
+					if ( frame >= frameCount ) {
+						if ( isLooping ) {
+							frame %= frameCount;
+						}
+						else {
+							frame = frameCount - 1;
+							isPlaying = false;
+							completedListener = listener;
+						}
+					}
+					
+					if ( frame != lastDrawnFrame ) {
+						drawFrame(frame);
+					}
+					
+					if ( isPlaying ) {
+						// Sleep until the next frame is due, or until something changes
+						//
+						double framesUntilNext = (frame + 1) - (currentPosition(System.nanoTime()) % frameCount);
+						long sleepMillis = (long) (framesUntilNext * 1000 / (sequence.getFrameRate() * playbackSpeed));
+						if ( sleepMillis > 0 ) lock.wait(sleepMillis);
+					}
+				}
+				
+				if ( completedListener != null ) {
+					completedListener.sequenceCompleted(this);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			synchronized (lock) {
+				renderThread = null;
+			}
+		}
+	}
+	
+	/**
+	 * Draws the frame, scaled to fill the surface. Called with the lock held.
+	 */
+	private void drawFrame(int frame) {
+		Canvas canvas = surfaceHolder.lockCanvas();
+		if ( canvas == null ) {
+			Log.w(TAG, "Surface is not ready");
+			return;
+		}
+		
+		try {
+			sequence.getFrameBounds(frame, sourceBounds);
+			targetBounds.set(0, 0, canvas.getWidth(), canvas.getHeight());
+			
+			canvas.drawColor(Color.BLACK);
+			canvas.drawBitmap(sequence.getBitmap(), sourceBounds, targetBounds, paint);
+		}
+		finally {
+			surfaceHolder.unlockCanvasAndPost(canvas);
+		}
+		
+		lastDrawnFrame = frame;
+	}
+}
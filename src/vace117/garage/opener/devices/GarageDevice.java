@@ -0,0 +1,114 @@
+package vace117.garage.opener.devices;
+
+import java.net.InetSocketAddress;
+
+import vace117.garage.opener.secure.channel.CommunicationChannel;
+import vace117.garage.opener.secure.channel.crypto.AESChannelClient;
+import vace117.garage.opener.secure.channel.crypto.KeyContext;
+import vace117.garage.opener.secure.channel.crypto.KeyRegistry;
+import vace117.garage.opener.secure.channel.network.InternetCommunicationChannel;
+import vace117.garage.opener.trace.DoorHistory;
+
+/**
+ * One Spark Core controlled door: where to find it and which key it uses.
+ * <p>
+ * The key itself lives in the <code>KeyRegistry</code>, and is only looked up when a client is created.
+ *
+ * @author Val Blant
+ */
+public class GarageDevice {
+	private final int number;
+	private final String name;
+	private final InetSocketAddress endpoint;
+	private final String keyId;
+	private final boolean isZeroRoundTrip;
+	private final boolean isBatching;
+
+
+	/**
+	 * @param number The door's number in <code>garages.properties</code>, which tells its records apart in the <code>DoorHistory</code>
+	 * @param endpoint May be unresolved, in which case it's resolved when a channel to it is opened
+	 * @param keyId The door's key in the <code>KeyRegistry</code>
+	 */
+	public GarageDevice(int number, String name, InetSocketAddress endpoint, String keyId) {
+		this(number, name, endpoint, keyId, false, false);
+	}
+
+	/**
+	 * @param isZeroRoundTrip <code>true</code> if the door's firmware supports 0-RTT conversations
+	 * @param isBatching <code>true</code> if the door's firmware supports batches of commands in one frame
+	 */
+	public GarageDevice(int number, String name, InetSocketAddress endpoint, String keyId, boolean isZeroRoundTrip, boolean isBatching) {
+		if ( number <= DoorHistory.NO_DOOR || number > DoorHistory.MAX_DOOR ) {
+			throw new IllegalArgumentException("Door numbers go from 1 to " + DoorHistory.MAX_DOOR + ", not " + number);
+		}
+
+		this.number = number;
+		this.name = name;
+		this.endpoint = endpoint;
+		this.keyId = keyId;
+		this.isZeroRoundTrip = isZeroRoundTrip;
+		this.isBatching = isBatching;
+	}
+
+	/**
+	 * @return A new client with its own connection to the door
+	 */
+	public AESChannelClient createClient() {
+		return createClient(new InternetCommunicationChannel(endpoint));
+	}
+
+	/**
+	 * @param channel A channel to this door, e.g. a recording one
+	 */
+	public AESChannelClient createClient(CommunicationChannel channel) {
+		AESChannelClient client = new AESChannelClient(channel, getKeys());
+		client.setZeroRoundTrip(isZeroRoundTrip);
+		client.setBatching(isBatching);
+		client.setDoorNumber(number);
+		return client;
+	}
+
+	/**
+	 * @return The same door, reached at a different address, e.g. on the LAN
+	 */
+	public GarageDevice at(InetSocketAddress otherEndpoint) {
+		return new GarageDevice(number, name, otherEndpoint, keyId, isZeroRoundTrip, isBatching);
+	}
+
+	public int getNumber() {
+		return number;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public InetSocketAddress getEndpoint() {
+		return endpoint;
+	}
+
+	public String getKeyId() {
+		return keyId;
+	}
+
+	public boolean isZeroRoundTrip() {
+		return isZeroRoundTrip;
+	}
+
+	public boolean isBatching() {
+		return isBatching;
+	}
+
+	/**
+	 * @return The door's key, ready to use. Waits for it to load, if it hasn't yet.
+	 */
+	public KeyContext getKeys() {
+		return KeyRegistry.getInstance().get(keyId);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
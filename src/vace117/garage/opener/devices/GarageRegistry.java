@@ -0,0 +1,140 @@
+package vace117.garage.opener.devices;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import vace117.garage.opener.GarageControlActivity;
+import vace117.garage.opener.secure.channel.crypto.KeyRegistry;
+import android.content.res.AssetManager;
+
+/**
+ * All of the doors the app knows about.
+ * <p>
+ * The doors are listed in the optional <code>garages.properties</code> asset, one block per door:
+ * <pre>
+ * 	garage.1.name=Left
+ * 	garage.1.host=vace.homelinux.com
+ * 	garage.1.port=45666
+ * 	garage.1.key=left
+ * 	garage.1.keyVersion=2
+ * 	garage.1.zeroRtt=true
+ * 	garage.1.batch=true
+ * </pre>
+ * The numbers decide the order of the doors, and tell their records apart in the <code>DoorHistory</code>, so they
+ * should stay the same once a door is in use. They go from 1 to 255. The key is the name of a key in the <code>KeyRegistry</code>, and
+ * defaults to the Master Key. The version defaults to 1. Only doors whose firmware supports 0-RTT conversations should
+ * have <code>zeroRtt</code> turned on, which it is not by default. The same goes for <code>batch</code>, which sends
+ * several commands in one frame.
+ * Without the file, there is a single door that is reached over the Internet with the Master Key.
+ * <p>
+ * The registry is loaded from the assets the first time it is needed, normally by <code>StartupWarmup</code>. Loading it
+ * starts loading the keys in the background.
+ *
+ * @author Val Blant
+ */
+public class GarageRegistry {
+	private static final String REGISTRY_ASSET = "garages.properties";
+
+	public static final String DEFAULT_HOST = "vace.homelinux.com";
+	public static final int DEFAULT_PORT = 45666;
+
+	private static GarageRegistry instance;
+
+	private final List<GarageDevice> devices;
+
+
+	/**
+	 * @return The shared registry. Reads the assets the first time.
+	 */
+	public static synchronized GarageRegistry getInstance() {
+		if ( instance == null ) {
+			try {
+				instance = load(GarageControlActivity.getAssetManager());
+			} catch (IOException e) {
+				throw new IllegalStateException("Couldn't read " + REGISTRY_ASSET, e);
+			}
+		}
+		return instance;
+	}
+
+	public static GarageRegistry load(AssetManager assets) throws IOException {
+		Properties registry = new Properties();
+		InputStream input;
+		try {
+			input = assets.open(REGISTRY_ASSET);
+		}
+		catch (IOException e) {
+			// Not there, so it's just the one door
+			//
+			GarageDevice door = new GarageDevice(1, "Garage",
+					InetSocketAddress.createUnresolved(DEFAULT_HOST, DEFAULT_PORT), KeyRegistry.MASTER_KEY_ID);
+			return new GarageRegistry(Collections.singletonList(door));
+		}
+
+		try {
+			registry.load(input);
+		}
+		finally {
+			input.close();
+		}
+
+		// Find the door numbers
+		//
+		TreeSet<Integer> numbers = new TreeSet<Integer>();
+		for ( String property : registry.stringPropertyNames() ) {
+			String[] parts = property.split("\\.");
+			if ( parts.length == 3 && parts[0].equals("garage") ) {
+				numbers.add(Integer.valueOf(parts[1]));
+			}
+		}
+
+		List<GarageDevice> devices = new ArrayList<GarageDevice>();
+		for ( Integer number : numbers ) {
+			String prefix = "garage." + number + ".";
+			String host = registry.getProperty(prefix + "host", DEFAULT_HOST);
+			int port = Integer.parseInt(registry.getProperty(prefix + "port", String.valueOf(DEFAULT_PORT)));
+			String keyName = registry.getProperty(prefix + "key", "master").replaceFirst("\\.key$", "");
+			int keyVersion = Integer.parseInt(registry.getProperty(prefix + "keyVersion", "1"));
+			boolean isZeroRoundTrip = Boolean.parseBoolean(registry.getProperty(prefix + "zeroRtt", "false"));
+			boolean isBatching = Boolean.parseBoolean(registry.getProperty(prefix + "batch", "false"));
+
+			devices.add(new GarageDevice(
+					number,
+					registry.getProperty(prefix + "name", "Garage " + number),
+					InetSocketAddress.createUnresolved(host, port),
+					KeyRegistry.keyId(keyName, keyVersion),
+					isZeroRoundTrip,
+					isBatching));
+		}
+
+		if ( devices.isEmpty() ) {
+			throw new IOException(REGISTRY_ASSET + " doesn't list any doors");
+		}
+		return new GarageRegistry(devices);
+	}
+
+	public GarageRegistry(List<GarageDevice> devices) {
+		this.devices = Collections.unmodifiableList(new ArrayList<GarageDevice>(devices));
+
+		for ( GarageDevice device : devices ) {
+			KeyRegistry.getInstance().prefetch(device.getKeyId());
+		}
+	}
+
+	public List<GarageDevice> getDevices() {
+		return devices;
+	}
+
+	/**
+	 * @return The first door in the registry
+	 */
+	public GarageDevice getDefaultDevice() {
+		return devices.get(0);
+	}
+}
@@ -0,0 +1,167 @@
+package vace117.garage.opener.devices;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import vace117.garage.opener.secure.channel.AbstractSecureChannelClient;
+
+/**
+ * Asks a number of doors for their status at the same time.
+ * <p>
+ * At most <code>maxParallel</code> doors are queried at once, so a large site doesn't open dozens of sockets. Every door
+ * gets its own deadline, counted from when its query starts: when it runs out, the door's connection is closed, which
+ * aborts the query. A refresh therefore takes about as long as the slowest door, or the deadline, rather than the sum of
+ * all of them, and a dead door can't hold up the others.
+ * <p>
+ * Doesn't depend on Android.
+ *
+ * @author Val Blant
+ */
+public class StatusFanOut {
+
+	/**
+	 * Outcome of asking one door
+	 */
+	public static class DeviceStatus {
+		public final GarageDevice device;
+
+		/**
+		 * The door status, or <code>null</code> if the query failed
+		 */
+		public final String status;
+		public final Throwable error;
+		public final long elapsedMillis;
+
+		DeviceStatus(GarageDevice device, String status, Throwable error, long elapsedMillis) {
+			this.device = device;
+			this.status = status;
+			this.error = error;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public boolean isTimedOut() {
+			return error instanceof TimeoutException;
+		}
+
+		@Override
+		public String toString() {
+			String outcome = status != null ? status : isTimedOut() ? "NO ANSWER" : "ERROR: " + error.getMessage();
+			return device + ": " + outcome + " (" + elapsedMillis + "ms)";
+		}
+	}
+
+
+	private final long deadlineMillis;
+
+	private final ThreadPoolExecutor workers;
+	private final ScheduledExecutorService watchdog;
+
+
+	/**
+	 * @param maxParallel How many doors may be queried at the same time
+	 * @param deadlineMillis How long each door has to answer
+	 */
+	public StatusFanOut(int maxParallel, long deadlineMillis) {
+		this.deadlineMillis = deadlineMillis;
+
+		ThreadFactory daemons = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Status Fan-out");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+
+		// Idle threads go away, since refreshes are rare
+		//
+		workers = new ThreadPoolExecutor(maxParallel, maxParallel, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), daemons);
+		workers.allowCoreThreadTimeOut(true);
+		watchdog = Executors.newSingleThreadScheduledExecutor(daemons);
+	}
+
+	/**
+	 * Queries all of the doors, and waits for all of them to answer or run out of time
+	 *
+	 * @return One result per door, in the same order as the doors
+	 */
+	public List<DeviceStatus> refresh(List<GarageDevice> devices) throws InterruptedException {
+		List<Future<DeviceStatus>> queries = new ArrayList<Future<DeviceStatus>>(devices.size());
+		for ( final GarageDevice device : devices ) {
+			queries.add( workers.submit(new Callable<DeviceStatus>() {
+				public DeviceStatus call() {
+					return query(device);
+				}
+			}));
+		}
+
+		List<DeviceStatus> results = new ArrayList<DeviceStatus>(devices.size());
+		for ( Future<DeviceStatus> query : queries ) {
+			try {
+				results.add( query.get() );
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause()); // query() doesn't throw
+			}
+		}
+		return results;
+	}
+
+	private DeviceStatus query(GarageDevice device) {
+		long startTime = System.nanoTime();
+		final AbstractSecureChannelClient client = device.createClient();
+
+		final AtomicBoolean isTimedOut = new AtomicBoolean(false);
+		ScheduledFuture<?> deadline = watchdog.schedule(new Runnable() {
+			public void run() {
+				isTimedOut.set(true);
+				closeQuietly(client); // Whatever the query is blocked on fails right away
+			}
+		}, deadlineMillis, TimeUnit.MILLISECONDS);
+
+		try {
+			client.openCommunicationChannel();
+			String status = client.createConversation().sendMessage("GET_STATUS");
+			return new DeviceStatus(device, status, null, elapsedMillis(startTime));
+		}
+		catch (Exception e) {
+			Throwable error = isTimedOut.get() ? new TimeoutException("No answer in " + deadlineMillis + "ms") : e;
+			return new DeviceStatus(device, null, error, elapsedMillis(startTime));
+		}
+		finally {
+			deadline.cancel(false);
+			closeQuietly(client);
+		}
+	}
+
+	private static void closeQuietly(AbstractSecureChannelClient client) {
+		try {
+			client.closeCommunicationChannel();
+		} catch (IOException e) {
+			// The connection is being abandoned anyway
+		}
+	}
+
+	private static long elapsedMillis(long startTime) {
+		return (System.nanoTime() - startTime) / 1000000;
+	}
+
+	/**
+	 * Stops accepting refreshes. Queries in progress are allowed to finish.
+	 */
+	public void shutdown() {
+		workers.shutdown();
+		watchdog.shutdown();
+	}
+}
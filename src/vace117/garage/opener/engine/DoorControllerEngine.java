@@ -0,0 +1,531 @@
+package vace117.garage.opener.engine;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import vace117.garage.opener.secure.channel.AbstractSecureChannelClient;
+import vace117.garage.opener.secure.channel.BatchResponse;
+import vace117.garage.opener.secure.channel.CommandBatch;
+import vace117.garage.opener.secure.channel.Conversation;
+import vace117.garage.opener.secure.channel.ConversationExpiredException;
+import vace117.garage.opener.secure.channel.SnapshotListener;
+import vace117.garage.opener.trace.DoorHistory;
+import vace117.garage.opener.trace.HistoryEvent;
+import vace117.garage.opener.trace.LatencyTracer;
+import vace117.garage.opener.trace.TraceStage;
+
+/**
+ * The door state machine, status polling and command logic, without any dependencies on Android.
+ * <p>
+ * Everything the user sees goes through a <code>DoorViewPort</code>, and all background work runs on the supplied
+ * <code>ScheduledExecutorService</code>, so the engine can run on a plain JVM, e.g. in a <code>DoorFleetSimulation</code>.
+ * <p>
+ * The door state lives in a lock-free <code>DoorStateMachine</code>. Statuses from the network are fed into it, and its
+ * transitions come back to <code>transitioned()</code>, which carries out their effects. The only lock is the one that
+ * serializes the use of the secure channel, and no state is read or changed while holding it, so a status update never
+ * waits behind a slow network call, and the network never waits for the UI.
+ *
+ * @author Val Blant
+ */
+public class DoorControllerEngine implements DoorTransitionListener {
+
+	private AbstractSecureChannelClient secureChannel;
+	private DoorViewPort viewPort;
+	private DoorStateMemory doorStateMemory;
+	private ScheduledExecutorService executor;
+
+	private DoorStateMachine stateMachine;
+	private DoorStatePublisher doorStates = new DoorStatePublisher();
+
+	/**
+	 * Only one conversation with the garage at a time
+	 */
+	private final Object channelLock = new Object();
+
+	private static final long STATUS_CACHE_TTL = 250; //ms. Absorbs bursts of status requests
+	private static final long MAX_STALE_DOOR_AGE = 24 * 60 * 60 * 1000L; //ms. An older state is too likely to be wrong to show
+
+	/**
+	 * All GET_STATUS requests go through here, so that concurrent requests share one network call
+	 */
+	private StatusRequestCoalescer statusRequests = new StatusRequestCoalescer(new Callable<String>() {
+		public String call() {
+			return sendCommand("GET_STATUS");
+		}
+	}, STATUS_CACHE_TTL);
+
+	private volatile long movingDoorPollPeriod = 2000; //ms
+	private final AtomicReference<ScheduledFuture<?>> movingDoorPoll = new AtomicReference<ScheduledFuture<?>>();
+	private final AtomicReference<ScheduledFuture<?>> confirmingStatusRequest = new AtomicReference<ScheduledFuture<?>>();
+
+	private static final double ROUND_TRIP_ALPHA = 0.3;
+
+	private TravelTimeEstimator travelTimes;
+
+	/**
+	 * Moving average of how long it takes to connect and get a response, in ms
+	 */
+	private volatile long roundTripMillis = 0;
+
+
+	public DoorControllerEngine(AbstractSecureChannelClient secureChannel, DoorViewPort viewPort,
+			DoorStateMemory doorStateMemory, ScheduledExecutorService executor)
+	{
+		this.secureChannel = secureChannel;
+		this.viewPort = viewPort;
+		this.doorStateMemory = doorStateMemory;
+		this.executor = executor;
+
+		travelTimes = new TravelTimeEstimator(doorStateMemory);
+		stateMachine = new DoorStateMachine(travelTimes, this);
+	}
+
+	/**
+	 * Shows the last known door state and fetches the live one. Blocks until the live status arrives.
+	 */
+	public void start() {
+		try {
+			viewPort.showConnecting();
+
+			// Draw the last state we know about right away, while the live status is being fetched, unless it's too old
+			// to be trusted. The picture is marked as stale and can't be clicked until we hear from the garage.
+			//
+			GarageDoorState lastKnownState = doorStateMemory.getLastKnownState();
+			long lastKnownStateAge = System.currentTimeMillis() - doorStateMemory.getLastKnownStateTime();
+			if ( lastKnownState != null && lastKnownStateAge <= MAX_STALE_DOOR_AGE ) {
+				viewPort.showStaleDoor(lastKnownState);
+			}
+
+			String liveStatus = requestStatus();
+
+			// Reconcile. If the door is moving, the last known state tells us which way it's likely going.
+			//
+			stateMachine.reconcile(lastKnownState);
+			updateDoorStatus( liveStatus );
+		}
+		catch (Throwable e) {
+			viewPort.showError(e);
+		}
+	}
+
+	public void stop() throws IOException {
+		stopPolling();
+		secureChannel.closeCommunicationChannel();
+	}
+
+
+	private void updateDoorStatus(String newStatus) {
+		updateDoorStatus(newStatus, -1);
+	}
+
+	/**
+	 * @param newStatus
+	 * @param commandResponseTime When the response to our OPEN or CLOSE command arrived, or -1 if this status wasn't one.
+	 *                            If the door is moving, that's when we consider it to have started.
+	 */
+	private void updateDoorStatus(String newStatus, long commandResponseTime) {
+		stateMachine.statusReceived(newStatus, clockMillis(), commandResponseTime);
+	}
+
+	/**
+	 * Carries out the effects of a state transition. Never blocks - the network is only used from scheduled tasks.
+	 */
+	public void transitioned(DoorTransition transition) {
+		try {
+			DoorSnapshot state = transition.getTo();
+
+			for ( DoorEffect effect : transition.getEffects() ) {
+				switch ( effect ) {
+					case STOP_POLLING:
+						stopPolling();
+						break;
+					case SHOW_DOOR:
+						viewPort.showDoor(state.getDoorState());
+						break;
+					case HIDE_ANIMATION:
+						viewPort.hideAnimation();
+						break;
+					case START_PROGRESS_BAR:
+						startProgressBar();
+						break;
+					case PLAY_SYNCED_ANIMATION:
+						startSyncedAnimation(state.getPredictedDoorStateAfterMovement(), transition.getSyncedAnimationMillis());
+						break;
+					case PLAY_OPEN_ANIMATION:
+						viewPort.playOpenAnimation();
+						break;
+					case PLAY_CLOSE_ANIMATION:
+						viewPort.playCloseAnimation();
+						break;
+					case PRELOAD_PREDICTED:
+						viewPort.preloadAnimationFor(state.getPredictedDoorStateAfterMovement());
+						break;
+					case PRELOAD_MOVING:
+						viewPort.preloadAnimationFor(GarageDoorState.MOVING);
+						break;
+					case SAVE_STATE:
+						doorStateMemory.save(state.getDoorState());
+						break;
+					case RECORD_TRAVEL_TIME:
+						travelTimes.record(state.getDoorState(), transition.getTravelMillis());
+						DoorHistory.record(state.getDoorState() == GarageDoorState.OPEN ? HistoryEvent.DOOR_OPENED : HistoryEvent.DOOR_CLOSED,
+								secureChannel.getDoorNumber(), transition.getTravelMillis());
+						break;
+				}
+			}
+		}
+		catch (Throwable e) {
+			viewPort.showError(e);
+		}
+
+		doorStates.publish(transition.getTo());
+	}
+
+	/**
+	 * Plays the open or close animation at a rate that makes it end when the door stops. The status that confirms
+	 * the end of the movement is requested so that it arrives just as the animation ends.
+	 */
+	private void startSyncedAnimation(GarageDoorState targetState, long remainingMillis) {
+		if ( !viewPort.playSyncedAnimation(targetState, remainingMillis) ) {
+			stateMachine.syncedAnimationRejected();
+			return;
+		}
+
+		// Keep polling in the background. If the door stops early, we'll notice and learn from it.
+		//
+		startPolling();
+
+		long confirmationDelay = Math.max(0, remainingMillis - roundTripMillis);
+		replace(confirmingStatusRequest, executor.schedule(new Runnable() {
+			public void run() {
+				try {
+					updateDoorStatus( requestStatus() );
+				}
+				catch (Throwable e) {
+					viewPort.showError(e);
+				}
+			}
+		}, confirmationDelay, TimeUnit.MILLISECONDS));
+	}
+
+
+	/**
+	 * The door is toggled by knocking on it 3 times within 800ms
+	 */
+	private final KnockGestureDetector knockDetector = new KnockGestureDetector(3, 800);
+
+	/**
+	 * <code>LatencyTracer</code> times of the most recent taps, oldest first starting at <code>nextTapTraceTime</code>.
+	 * When a knock is recognized, these are the taps that make it up.
+	 */
+	private final long[] tapTraceTimes = new long[knockDetector.getRequiredTaps()];
+	private int nextTapTraceTime = 0;
+
+	/**
+	 * Set while a knock is being acted upon, so that extra taps don't send a second command
+	 */
+	private volatile boolean isKnockCommandInProgress = false;
+
+	/**
+	 * <code>LatencyTracer</code> trace of the knock whose animation is playing, or 0. 
+	 * The knock trace ends once its animation is over.
+	 */
+	private volatile int knockTraceId = 0;
+
+	/**
+	 * Call on every tap on the door. Taps must all come from the same thread.
+	 *
+	 * @param tapTimeMillis When the tap happened, from a monotonic clock
+	 */
+	public void doorClicked(long tapTimeMillis) {
+		long tapTraceTime = LatencyTracer.now();
+		tapTraceTimes[nextTapTraceTime] = tapTraceTime;
+		nextTapTraceTime = (nextTapTraceTime + 1) % tapTraceTimes.length;
+
+		if ( !knockDetector.onTap(tapTimeMillis) || isKnockCommandInProgress ) {
+			return;
+		}
+
+		int traceId = LatencyTracer.beginTrace();
+		LatencyTracer.record(TraceStage.GESTURE, tapTraceTimes[nextTapTraceTime], tapTraceTime);
+		LatencyTracer.endTrace(); // The rest of the knock is traced on the executor thread
+
+		toggleDoor(traceId);
+	}
+
+	/**
+	 * Sends OPEN if the door is closed, or CLOSE if it is open. Returns immediately.
+	 */
+	public void toggleDoor() {
+		toggleDoor(0);
+	}
+
+	/**
+	 * @param traceId <code>LatencyTracer</code> trace the command belongs to, or 0 if it is not traced
+	 */
+	private void toggleDoor(final int traceId) {
+		isKnockCommandInProgress = true;
+
+		final long threadStartTime = LatencyTracer.now();
+	    executor.execute(new Runnable() {
+	        public void run() {
+	        	LatencyTracer.resumeTrace(traceId);
+	        	LatencyTracer.record(TraceStage.THREAD_STARTUP, threadStartTime);
+	        	try {
+					viewPort.disableDoor();
+
+		        	// If nothing is sent, no animation will continue the trace
+		        	//
+		        	GarageDoorState doorState = stateMachine.getState().getDoorState();
+		        	if ( GarageDoorState.OPEN.equals( doorState ) ) {
+		        		knockTraceId = traceId;
+		    			String status = sendCommandAndGetStatus("CLOSE");
+		    			updateDoorStatus( status, clockMillis() );
+		        	}
+		        	else if ( GarageDoorState.CLOSED.equals( doorState ) ) {
+		        		knockTraceId = traceId;
+		    			String status = sendCommandAndGetStatus("OPEN");
+		    			updateDoorStatus( status, clockMillis() );
+		        	}
+	        	}
+	        	catch (Throwable e) {
+	        		LatencyTracer.record(TraceStage.FAILURE, threadStartTime);
+	        		knockTraceId = 0;
+	        		viewPort.showError(e);
+	        	}
+	        	finally {
+	        		LatencyTracer.endTrace();
+	        		isKnockCommandInProgress = false;
+	        	}
+	        }
+	    });
+	}
+
+	/**
+	 * The <code>DoorViewPort</code> must call this when an open or close animation is over
+	 */
+	public void animationCompleted() {
+	    executor.execute(new Runnable() {
+	        public void run() {
+	        	LatencyTracer.resumeTrace(knockTraceId);
+	        	knockTraceId = 0;
+
+	        	long statusStartTime = LatencyTracer.now();
+	    		try {
+	    			if ( stateMachine.syncedAnimationCompleted() ) {
+	    				return;
+	    			}
+
+	    			viewPort.hideAnimation();
+
+	    			statusStartTime = LatencyTracer.now();
+	    			String status = requestStatus();
+	    			LatencyTracer.record(TraceStage.FINAL_STATUS, statusStartTime);
+	    			LatencyTracer.endTrace(); // Whatever the final status shows next is not part of the knock
+
+	    			updateDoorStatus( status );
+	    		}
+	        	catch (Throwable e) {
+	        		LatencyTracer.record(TraceStage.FAILURE, statusStartTime);
+	        		viewPort.showError(e);
+	        	}
+	        	finally {
+	        		LatencyTracer.endTrace();
+	        	}
+	        }
+	    });
+	}
+
+	/**
+	 * Streams a picture of the door from the garage camera. Returns immediately.
+	 * <p>
+	 * The channel is busy for the whole transfer, so status requests wait until the picture is in.
+	 *
+	 * @param listener Told about every chunk, on a background thread
+	 */
+	public void requestSnapshot(final SnapshotListener listener) {
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					synchronized (channelLock) {
+						requestSnapshotOverChannel(listener);
+					}
+				}
+				catch (Throwable e) {
+					viewPort.showError(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return Last known door state, or <code>null</code> if we haven't heard from the garage yet
+	 */
+	public GarageDoorState getDoorState() {
+		return stateMachine.getState().getDoorState();
+	}
+
+	/**
+	 * @return Stream of door states for anything that wants to follow the door, beyond the <code>DoorViewPort</code>
+	 */
+	public DoorStatePublisher getDoorStates() {
+		return doorStates;
+	}
+
+	/**
+	 * @param periodMillis How often to ask for the door status while it's moving
+	 */
+	public void setMovingDoorPollPeriod(long periodMillis) {
+		this.movingDoorPollPeriod = periodMillis;
+	}
+
+
+	/**
+	 * @return Current door status. Concurrent callers are coalesced into a single GET_STATUS request.
+	 */
+	private String requestStatus() {
+		return statusRequests.getStatus();
+	}
+
+	private String sendCommand(String command) {
+		return sendCommands( new CommandBatch(command) ).getLast();
+	}
+
+	/**
+	 * Sends the command together with a GET_STATUS in one frame, which saves a round trip on every state transition.
+	 * <p>
+	 * The command's own response is what counts. Right after the relay fires, GET_STATUS can still see the door where
+	 * it was, so its answer is only used if the command's response isn't a door status.
+	 *
+	 * @return The door status after the command was executed
+	 */
+	private String sendCommandAndGetStatus(String command) {
+		BatchResponse responses = sendCommands( new CommandBatch(command, "GET_STATUS") );
+		
+		String commandResponse = responses.get(0);
+		return isDoorStatus(commandResponse) ? commandResponse : responses.getLast();
+	}
+
+	private static boolean isDoorStatus(String response) {
+		return "DOOR_OPEN".equals(response) || "DOOR_CLOSED".equals(response) || "DOOR_MOVING".equals(response);
+	}
+
+	private BatchResponse sendCommands(CommandBatch commands) {
+		if ( commands.containsCommandOtherThan("GET_STATUS") ) {
+			statusRequests.invalidate(); // The door is about to change state
+		}
+
+		synchronized (channelLock) {
+			return sendCommandsOverChannel(commands);
+		}
+	}
+
+	private BatchResponse sendCommandsOverChannel(CommandBatch commands) {
+		long startTime = clockMillis();
+		try {
+			long connectStartTime = LatencyTracer.now();
+			secureChannel.openCommunicationChannel();
+			LatencyTracer.record(TraceStage.CONNECT, connectStartTime);
+			DoorHistory.record(HistoryEvent.CONNECT, secureChannel.getDoorNumber(), (LatencyTracer.now() - connectStartTime) / 1000000);
+
+			Conversation conversation = secureChannel.createConversation();
+			BatchResponse response = conversation.sendBatch(commands);
+
+			long roundTrip = clockMillis() - startTime;
+			recordRoundTrip(roundTrip);
+			DoorHistory.record(HistoryEvent.ROUND_TRIP, secureChannel.getDoorNumber(), roundTrip);
+			return response;
+		} catch (ConversationExpiredException e) {
+			DoorHistory.record(HistoryEvent.FAILURE, secureChannel.getDoorNumber(), clockMillis() - startTime);
+			throw new IllegalStateException("Conversation Token not accepted", e);
+		} catch (Exception e) {
+			DoorHistory.record(HistoryEvent.FAILURE, secureChannel.getDoorNumber(), clockMillis() - startTime);
+			throw new IllegalStateException("Unable to send message", e);
+		}
+		finally {
+			try {
+				secureChannel.closeCommunicationChannel();
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to close Communication Channel", e);
+			}
+		}
+
+	}
+
+	private void requestSnapshotOverChannel(SnapshotListener listener) {
+		long startTime = clockMillis();
+		try {
+			secureChannel.openCommunicationChannel();
+			Conversation conversation = secureChannel.createConversation();
+			conversation.requestSnapshot(listener);
+		} catch (ConversationExpiredException e) {
+			DoorHistory.record(HistoryEvent.FAILURE, secureChannel.getDoorNumber(), clockMillis() - startTime);
+			throw new IllegalStateException("Conversation Token not accepted", e);
+		} catch (Exception e) {
+			DoorHistory.record(HistoryEvent.FAILURE, secureChannel.getDoorNumber(), clockMillis() - startTime);
+			throw new IllegalStateException("Unable to get a snapshot", e);
+		}
+		finally {
+			try {
+				secureChannel.closeCommunicationChannel();
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to close Communication Channel", e);
+			}
+		}
+	}
+
+	/**
+	 * Only called while holding <code>channelLock</code>
+	 */
+	private void recordRoundTrip(long millis) {
+		roundTripMillis = roundTripMillis == 0 ? millis : Math.round(ROUND_TRIP_ALPHA * millis + (1 - ROUND_TRIP_ALPHA) * roundTripMillis);
+	}
+
+	private void stopPolling() {
+		replace(movingDoorPoll, null);
+		replace(confirmingStatusRequest, null);
+	}
+
+	/**
+	 * Cancels whatever task was there before
+	 */
+	private static void replace(AtomicReference<ScheduledFuture<?>> task, ScheduledFuture<?> newTask) {
+		ScheduledFuture<?> oldTask = task.getAndSet(newTask);
+		if ( oldTask != null ) {
+			oldTask.cancel(false);
+		}
+	}
+
+	private void startProgressBar() {
+		viewPort.startProgressAnimation();
+
+		// Query the door status while the door is moving and the progress bar video is playing
+		//
+		startPolling();
+	}
+
+	/**
+	 * We've just received a fresh status, so the first query can wait for the full period
+	 */
+	private void startPolling() {
+		replace(movingDoorPoll, executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					updateDoorStatus( requestStatus() );
+				}
+		    	catch (Throwable e) {
+		    		viewPort.showError(e);
+		    	}
+			}
+		}, movingDoorPollPeriod, movingDoorPollPeriod, TimeUnit.MILLISECONDS));
+	}
+
+	private static long clockMillis() {
+		return System.nanoTime() / 1000000L;
+	}
+
+}
@@ -0,0 +1,55 @@
+package vace117.garage.opener.engine;
+
+/**
+ * Things that have to happen outside of the state machine as a result of a <code>DoorTransition</code>.
+ * <p>
+ * They are carried out by <code>DoorControllerEngine</code>, in the order they are listed in the transition.
+ *
+ * @author Val Blant
+ */
+public enum DoorEffect {
+	/**
+	 * Cancel the moving door poll and the confirming status request
+	 */
+	STOP_POLLING,
+
+	/**
+	 * Show the door in its new state, ready for knocks
+	 */
+	SHOW_DOOR,
+
+	HIDE_ANIMATION,
+
+	/**
+	 * Show the progress animation and poll until the door stops
+	 */
+	START_PROGRESS_BAR,
+
+	/**
+	 * Play the animation for the predicted state, synced with the door. See <code>DoorTransition.getSyncedAnimationMillis()</code>.
+	 */
+	PLAY_SYNCED_ANIMATION,
+
+	PLAY_OPEN_ANIMATION,
+	PLAY_CLOSE_ANIMATION,
+
+	/**
+	 * Get the animation for the predicted state ready
+	 */
+	PRELOAD_PREDICTED,
+
+	/**
+	 * Get the progress animation ready, since a knock is what comes next
+	 */
+	PRELOAD_MOVING,
+
+	/**
+	 * Remember the new door state across restarts
+	 */
+	SAVE_STATE,
+
+	/**
+	 * Learn from how long the movement took. See <code>DoorTransition.getTravelMillis()</code>.
+	 */
+	RECORD_TRAVEL_TIME
+}
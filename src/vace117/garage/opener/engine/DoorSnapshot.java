@@ -0,0 +1,72 @@
+package vace117.garage.opener.engine;
+
+/**
+ * Immutable picture of everything the controller believes about the door at one point in time.
+ * <p>
+ * Snapshots are never modified. <code>DoorStateMachine</code> replaces the current one with a new one in a single
+ * compare-and-set, so a reader on any thread always sees a consistent set of values.
+ *
+ * @author Val Blant
+ */
+public final class DoorSnapshot {
+
+	/**
+	 * Before we have heard anything about the door
+	 */
+	static final DoorSnapshot UNKNOWN = new DoorSnapshot(null, null, -1, -1, false, false);
+
+	final GarageDoorState doorState;
+
+	/**
+	 * This complication allows us not to wait for the door to stop moving, before we decide
+	 * whether to play the open or close animation. Since we can't actually tell if the door is
+	 * opening or closing while its moving, we have to guess based on the previous state of the door.
+	 *
+	 * Not waiting for the door to stop moving before playing the animation is useful, b/c we can have
+	 * the animation be roughly in sync with the movement of the physical door.
+	 *
+	 * The true state of the door will be requested after the animation is finished.
+	 */
+	final GarageDoorState predictedDoorStateAfterMovement;
+
+	final long movementStartTime;
+	final long lastMovingSeenTime;
+
+	/**
+	 * Set when the open or close animation for the current movement has already been played or is playing
+	 */
+	final boolean isMovementAnimated;
+	final boolean isSyncedAnimationPlaying;
+
+
+	DoorSnapshot(GarageDoorState doorState, GarageDoorState predictedDoorStateAfterMovement,
+			long movementStartTime, long lastMovingSeenTime,
+			boolean isMovementAnimated, boolean isSyncedAnimationPlaying)
+	{
+		this.doorState = doorState;
+		this.predictedDoorStateAfterMovement = predictedDoorStateAfterMovement;
+		this.movementStartTime = movementStartTime;
+		this.lastMovingSeenTime = lastMovingSeenTime;
+		this.isMovementAnimated = isMovementAnimated;
+		this.isSyncedAnimationPlaying = isSyncedAnimationPlaying;
+	}
+
+	/**
+	 * @return Last known door state, or <code>null</code> if we haven't heard from the garage yet
+	 */
+	public GarageDoorState getDoorState() {
+		return doorState;
+	}
+
+	/**
+	 * @return Where we think the door is going while it's MOVING, or <code>null</code> if we can't tell
+	 */
+	public GarageDoorState getPredictedDoorStateAfterMovement() {
+		return predictedDoorStateAfterMovement;
+	}
+
+	@Override
+	public String toString() {
+		return doorState + (predictedDoorStateAfterMovement != null ? " -> " + predictedDoorStateAfterMovement : "");
+	}
+}
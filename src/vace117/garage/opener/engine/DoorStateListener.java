@@ -0,0 +1,15 @@
+package vace117.garage.opener.engine;
+
+/**
+ * Subscriber to a <code>DoorStatePublisher</code>
+ *
+ * @author Val Blant
+ */
+public interface DoorStateListener {
+
+	/**
+	 * Called on the subscriber's own <code>Executor</code>, never concurrently. A subscriber that falls behind skips
+	 * straight to the latest state. Must not throw.
+	 */
+	public void doorStateChanged(DoorSnapshot state);
+}
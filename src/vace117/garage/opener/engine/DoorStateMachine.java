@@ -0,0 +1,299 @@
+package vace117.garage.opener.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free garage door state machine.
+ * <p>
+ * The current state is an immutable <code>DoorSnapshot</code>. Every event computes the next snapshot from the current one
+ * and installs it with a compare-and-set, retrying if another thread got there first, so no thread ever waits for another.
+ * Nothing in here talks to the network or to the UI. Instead, each successful transition is emitted as a <code>DoorTransition</code>
+ * that lists the effects the <code>DoorTransitionListener</code> has to carry out.
+ * <p>
+ * Transitions are delivered in exactly the order in which they were installed, one at a time, on whichever thread happens to be
+ * delivering at the moment. The winner of each compare-and-set links its transition after the one it replaced, and then either
+ * delivers the chain itself, or leaves it to the thread that is already delivering.
+ *
+ * @author Val Blant
+ */
+public class DoorStateMachine {
+
+	/**
+	 * Synced animations shorter than this are not worth it - the progress bar is shown instead
+	 */
+	private static final long MIN_SYNCED_ANIMATION_MILLIS = 1000;
+
+	private final TravelTimeEstimator travelTimes;
+	private final DoorTransitionListener listener;
+
+	private static class Node {
+		final DoorSnapshot state;
+		final DoorTransition transition;
+		volatile Node next;
+
+		Node(DoorSnapshot state, DoorTransition transition) {
+			this.state = state;
+			this.transition = transition;
+		}
+	}
+
+	private final AtomicReference<Node> latest = new AtomicReference<Node>(new Node(DoorSnapshot.UNKNOWN, null));
+
+	/**
+	 * Only touched by the delivering thread. <code>pendingDeliveries</code> hands it from one delivering thread to the next.
+	 */
+	private Node lastDelivered = latest.get();
+	private final AtomicInteger pendingDeliveries = new AtomicInteger();
+
+
+	/**
+	 * Computes the transition out of a state. May be called several times, so it must not have side effects.
+	 */
+	private interface Rule {
+		/**
+		 * @return <code>null</code> if the event doesn't change anything in this state
+		 */
+		DoorTransition apply(DoorSnapshot from);
+	}
+
+
+	public DoorStateMachine(TravelTimeEstimator travelTimes, DoorTransitionListener listener) {
+		this.travelTimes = travelTimes;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return The current state. Never blocks.
+	 */
+	public DoorSnapshot getState() {
+		return latest.get().state;
+	}
+
+	/**
+	 * Until we hear from the garage, assume the door is where we last saw it
+	 */
+	public void reconcile(final GarageDoorState lastKnownState) {
+		transition(new Rule() {
+			public DoorTransition apply(DoorSnapshot from) {
+				if ( from.doorState != null || lastKnownState == null ) return null;
+
+				DoorSnapshot to = new DoorSnapshot(lastKnownState, null, -1, -1, false, false);
+				return new DoorTransition(from, to, "RECONCILE", 0, 0);
+			}
+		});
+	}
+
+	/**
+	 * @param status DOOR_MOVING, DOOR_OPEN or DOOR_CLOSED. Anything else is ignored.
+	 * @param now Monotonic time in ms
+	 * @param commandResponseTime When the response to our OPEN or CLOSE command arrived, or -1 if this status wasn't one.
+	 *                            If the door is moving, that's when we consider it to have started.
+	 */
+	public void statusReceived(final String status, final long now, final long commandResponseTime) {
+		transition(new Rule() {
+			public DoorTransition apply(DoorSnapshot from) {
+				if ( "DOOR_MOVING".equals(status) ) {
+					return doorMoving(from, now, commandResponseTime);
+				}
+				else if ( "DOOR_OPEN".equals(status) ) {
+					return doorStopped(from, GarageDoorState.OPEN, status, now);
+				}
+				else if ( "DOOR_CLOSED".equals(status) ) {
+					return doorStopped(from, GarageDoorState.CLOSED, status, now);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * The status confirming the end of a synced animation has normally arrived by the time it's over,
+	 * so there is no need to ask again.
+	 *
+	 * @return <code>false</code> if the animation that just completed wasn't synced with the door
+	 */
+	public boolean syncedAnimationCompleted() {
+		return transition(new Rule() {
+			public DoorTransition apply(DoorSnapshot from) {
+				return endSyncedAnimation(from, "ANIMATION_COMPLETED", false);
+			}
+		}) != null;
+	}
+
+	/**
+	 * The view port can't play a synced animation after all. The movement is then shown like one that couldn't be synced.
+	 */
+	public void syncedAnimationRejected() {
+		transition(new Rule() {
+			public DoorTransition apply(DoorSnapshot from) {
+				return endSyncedAnimation(from, "ANIMATION_REJECTED", true);
+			}
+		});
+	}
+
+
+	private DoorTransition doorMoving(DoorSnapshot from, long now, long commandResponseTime) {
+		List<DoorEffect> effects = new ArrayList<DoorEffect>();
+		GarageDoorState predicted = from.predictedDoorStateAfterMovement;
+		long movementStartTime = from.movementStartTime;
+		boolean isMovementAnimated = from.isMovementAnimated;
+		boolean isSyncedAnimationPlaying = from.isSyncedAnimationPlaying;
+		long syncedAnimationMillis = 0;
+
+		if ( from.doorState == GarageDoorState.CLOSED || from.doorState == GarageDoorState.OPEN ) {
+			predicted = from.doorState == GarageDoorState.CLOSED ? GarageDoorState.OPEN : GarageDoorState.CLOSED;
+			movementStartTime = commandResponseTime;
+
+			syncedAnimationMillis = getSyncedAnimationMillis(predicted, movementStartTime, now);
+			if ( syncedAnimationMillis > 0 ) {
+				isMovementAnimated = true;
+				isSyncedAnimationPlaying = true;
+				effects.add(DoorEffect.PLAY_SYNCED_ANIMATION);
+			}
+			else {
+				effects.add(DoorEffect.START_PROGRESS_BAR);
+
+				// Get the animation for the end of the movement ready while the progress bar is playing
+				effects.add(DoorEffect.PRELOAD_PREDICTED);
+			}
+		}
+		else if ( predicted != null && !isMovementAnimated ) {
+			effects.add(DoorEffect.PRELOAD_PREDICTED);
+		}
+
+		DoorSnapshot to = new DoorSnapshot(GarageDoorState.MOVING, predicted, movementStartTime, now, isMovementAnimated, isSyncedAnimationPlaying);
+		return new DoorTransition(from, to, "DOOR_MOVING", 0, syncedAnimationMillis, effects.toArray(new DoorEffect[effects.size()]));
+	}
+
+	private DoorTransition doorStopped(DoorSnapshot from, GarageDoorState finalState, String status, long now) {
+		List<DoorEffect> effects = new ArrayList<DoorEffect>();
+		effects.add(DoorEffect.STOP_POLLING);
+		boolean isMovementAnimated = from.isMovementAnimated;
+		long travelMillis = 0;
+
+		if ( from.doorState == GarageDoorState.MOVING ) {
+			// The end of the movement happened somewhere between the last time we saw the door moving and now
+			//
+			if ( from.movementStartTime >= 0 && from.lastMovingSeenTime >= from.movementStartTime ) {
+				long movementEndTime = (from.lastMovingSeenTime + now) / 2;
+				travelMillis = movementEndTime - from.movementStartTime;
+				effects.add(DoorEffect.RECORD_TRAVEL_TIME);
+			}
+
+			if ( isMovementAnimated ) {
+				// Never replay the animation - just show the door, unless the synced animation is still on screen,
+				// in which case syncedAnimationCompleted() will.
+				//
+				isMovementAnimated = false;
+				if ( !from.isSyncedAnimationPlaying ) {
+					effects.add(DoorEffect.HIDE_ANIMATION); // The progress bar
+					effects.add(DoorEffect.SHOW_DOOR);
+					effects.add(DoorEffect.PRELOAD_MOVING);
+				}
+			}
+			else if ( finalState == GarageDoorState.CLOSED || from.predictedDoorStateAfterMovement == GarageDoorState.CLOSED ) {
+				effects.add(DoorEffect.PLAY_CLOSE_ANIMATION);
+			}
+			else if ( from.predictedDoorStateAfterMovement == GarageDoorState.OPEN ) {
+				effects.add(DoorEffect.PLAY_OPEN_ANIMATION);
+			}
+			else {
+				// We never knew which way it was going
+				effects.add(DoorEffect.HIDE_ANIMATION);
+				effects.add(DoorEffect.SHOW_DOOR);
+				effects.add(DoorEffect.PRELOAD_MOVING);
+			}
+		}
+		else {
+			effects.add(DoorEffect.SHOW_DOOR);
+			effects.add(DoorEffect.PRELOAD_MOVING); // A knock is what comes next
+		}
+		effects.add(DoorEffect.SAVE_STATE);
+
+		DoorSnapshot to = new DoorSnapshot(finalState, null, -1, -1, isMovementAnimated, from.isSyncedAnimationPlaying);
+		return new DoorTransition(from, to, status, travelMillis, 0, effects.toArray(new DoorEffect[effects.size()]));
+	}
+
+	/**
+	 * @param isRejected <code>true</code> if the animation was never played
+	 */
+	private DoorTransition endSyncedAnimation(DoorSnapshot from, String cause, boolean isRejected) {
+		if ( !from.isSyncedAnimationPlaying ) return null;
+
+		if ( from.doorState == GarageDoorState.MOVING && isRejected ) {
+			// Nothing was animated, so the open or close animation is still to be played when the door stops
+			//
+			DoorSnapshot to = new DoorSnapshot(from.doorState, from.predictedDoorStateAfterMovement,
+					from.movementStartTime, from.lastMovingSeenTime, false, false);
+			return new DoorTransition(from, to, cause, 0, 0, DoorEffect.START_PROGRESS_BAR, DoorEffect.PRELOAD_PREDICTED);
+		}
+		else if ( from.doorState == GarageDoorState.MOVING ) {
+			// The door is slower than we thought. Show progress until it stops.
+			//
+			DoorSnapshot to = new DoorSnapshot(from.doorState, from.predictedDoorStateAfterMovement,
+					from.movementStartTime, from.lastMovingSeenTime, from.isMovementAnimated, false);
+			return new DoorTransition(from, to, cause, 0, 0, DoorEffect.START_PROGRESS_BAR);
+		}
+		else {
+			DoorSnapshot to = new DoorSnapshot(from.doorState, from.predictedDoorStateAfterMovement,
+					from.movementStartTime, from.lastMovingSeenTime, false, false);
+			return new DoorTransition(from, to, cause, 0, 0, DoorEffect.HIDE_ANIMATION, DoorEffect.SHOW_DOOR, DoorEffect.PRELOAD_MOVING);
+		}
+	}
+
+	/**
+	 * If we know when the door started moving and how long it usually takes, the open or close animation can be played
+	 * right away, at a rate that makes it end when the door stops.
+	 *
+	 * @return How long the animation should take, or 0 if it can't be synced with the door
+	 */
+	private long getSyncedAnimationMillis(GarageDoorState direction, long movementStartTime, long now) {
+		long travelMillis = travelTimes.getEstimate(direction);
+		if ( movementStartTime < 0 || travelMillis <= 0 ) return 0;
+
+		long remainingMillis = travelMillis - (now - movementStartTime);
+		return remainingMillis < MIN_SYNCED_ANIMATION_MILLIS ? 0 : remainingMillis;
+	}
+
+
+	/**
+	 * Installs the next state with a compare-and-set, and delivers the transition
+	 *
+	 * @return The transition, or <code>null</code> if nothing changed
+	 */
+	private DoorTransition transition(Rule rule) {
+		while ( true ) {
+			Node current = latest.get();
+			DoorTransition transition = rule.apply(current.state);
+			if ( transition == null ) return null;
+
+			Node next = new Node(transition.getTo(), transition);
+			if ( latest.compareAndSet(current, next) ) {
+				current.next = next;
+				deliver();
+				return transition;
+			}
+		}
+	}
+
+	/**
+	 * Only one thread delivers at a time. Anyone arriving in the meantime just bumps <code>pendingDeliveries</code>,
+	 * which makes the delivering thread look for more transitions before it leaves.
+	 */
+	private void deliver() {
+		if ( pendingDeliveries.getAndIncrement() != 0 ) return;
+
+		int missed = 1;
+		do {
+			Node next;
+			while ( (next = lastDelivered.next) != null ) {
+				lastDelivered = next;
+				listener.transitioned(next.transition);
+			}
+			missed = pendingDeliveries.addAndGet(-missed);
+		} while ( missed != 0 );
+	}
+}
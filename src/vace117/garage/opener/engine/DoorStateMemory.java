@@ -0,0 +1,35 @@
+package vace117.garage.opener.engine;
+
+/**
+ * Remembers the last confirmed state of the door between runs
+ *
+ * @author Val Blant
+ */
+public interface DoorStateMemory {
+	
+	/**
+	 * @return The last confirmed door state, or <code>null</code> if there isn't one
+	 */
+	public GarageDoorState getLastKnownState();
+	
+	/**
+	 * @return When the last known state was confirmed, in ms since the epoch. 0 if never.
+	 */
+	public long getLastKnownStateTime();
+	
+	/**
+	 * Records a confirmed door state
+	 */
+	public void save(GarageDoorState state);
+	
+	/**
+	 * @param direction OPEN for opening, CLOSED for closing
+	 * @return The remembered travel time estimate in ms, or 0 if there isn't one
+	 */
+	public long getTravelTime(GarageDoorState direction);
+	
+	/**
+	 * Records the current travel time estimate for one direction
+	 */
+	public void saveTravelTime(GarageDoorState direction, long travelMillis);
+}
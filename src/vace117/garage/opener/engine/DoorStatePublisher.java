@@ -0,0 +1,123 @@
+package vace117.garage.opener.engine;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fans the door state out to any number of <code>DoorStateListener</code>s, without any extra network calls.
+ * <p>
+ * Updates are conflated twice:
+ * <ul>
+ * 	<li>A state that looks the same as the last published one is not published at all, e.g. every poll of a moving door.</li>
+ * 	<li>Each subscriber has a single slot for its next state. If a new state arrives before the subscriber has
+ * 		taken the previous one, the previous one is dropped, so a slow subscriber only ever sees the latest state,
+ * 		and never holds up the publisher or the other subscribers.</li>
+ * </ul>
+ * New subscribers receive the current state right away.
+ *
+ * @author Val Blant
+ */
+public class DoorStatePublisher {
+
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	private volatile DoorSnapshot latest;
+
+
+	/**
+	 * @param executor Where the listener is called, e.g. the UI thread
+	 */
+	public Subscription subscribe(DoorStateListener listener, Executor executor) {
+		Subscription subscription = new Subscription(listener, executor);
+		subscriptions.add(subscription);
+
+		// If a publish() sneaks in while we are offering the current state, it may have been overwritten by an older one
+		//
+		DoorSnapshot state;
+		do {
+			state = latest;
+			if ( state != null ) subscription.offer(state);
+		} while ( state != latest );
+
+		return subscription;
+	}
+
+	/**
+	 * Must not be called concurrently. <code>DoorControllerEngine</code> calls it from <code>DoorStateMachine</code> deliveries.
+	 */
+	public void publish(DoorSnapshot state) {
+		if ( isSame(latest, state) ) return;
+
+		latest = state;
+		for ( Subscription subscription : subscriptions ) {
+			subscription.offer(state);
+		}
+	}
+
+	/**
+	 * @return The last published state, or <code>null</code> if there hasn't been one
+	 */
+	public DoorSnapshot getLatest() {
+		return latest;
+	}
+
+	private static boolean isSame(DoorSnapshot a, DoorSnapshot b) {
+		return a != null
+				&& a.getDoorState() == b.getDoorState()
+				&& a.getPredictedDoorStateAfterMovement() == b.getPredictedDoorStateAfterMovement();
+	}
+
+
+	public class Subscription {
+		private final DoorStateListener listener;
+		private final Executor executor;
+
+		private final AtomicReference<DoorSnapshot> pending = new AtomicReference<DoorSnapshot>();
+		private final AtomicInteger pendingOffers = new AtomicInteger();
+		private volatile boolean isCancelled = false;
+
+		private final Runnable deliveryTask = new Runnable() {
+			public void run() {
+				int missed = 1;
+				do {
+					DoorSnapshot state = pending.getAndSet(null);
+					if ( state != null && !isCancelled ) {
+						listener.doorStateChanged(state);
+					}
+					missed = pendingOffers.addAndGet(-missed);
+				} while ( missed != 0 );
+			}
+		};
+
+		Subscription(DoorStateListener listener, Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+
+		/**
+		 * Replaces whatever the subscriber hasn't picked up yet. Only schedules a delivery if there isn't one already.
+		 */
+		void offer(DoorSnapshot state) {
+			pending.set(state);
+			if ( pendingOffers.getAndIncrement() == 0 ) {
+				try {
+					executor.execute(deliveryTask);
+				} catch (RejectedExecutionException e) {
+					cancel(); // The subscriber's executor has been shut down, so it's not listening anymore
+				}
+			}
+		}
+
+		/**
+		 * No more states will be delivered after this returns, except one that is being delivered right now
+		 */
+		public void cancel() {
+			isCancelled = true;
+			subscriptions.remove(this);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package vace117.garage.opener.engine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An event emitted by <code>DoorStateMachine</code> each time it moves from one <code>DoorSnapshot</code> to the next.
+ *
+ * @author Val Blant
+ */
+public final class DoorTransition {
+
+	private final DoorSnapshot from;
+	private final DoorSnapshot to;
+	private final String cause;
+	private final List<DoorEffect> effects;
+
+	private final long travelMillis;
+	private final long syncedAnimationMillis;
+
+
+	DoorTransition(DoorSnapshot from, DoorSnapshot to, String cause, long travelMillis, long syncedAnimationMillis, DoorEffect... effects) {
+		this.from = from;
+		this.to = to;
+		this.cause = cause;
+		this.travelMillis = travelMillis;
+		this.syncedAnimationMillis = syncedAnimationMillis;
+		this.effects = Collections.unmodifiableList(Arrays.asList(effects));
+	}
+
+	public DoorSnapshot getFrom() {
+		return from;
+	}
+
+	public DoorSnapshot getTo() {
+		return to;
+	}
+
+	/**
+	 * @return The door status that caused the transition, or the name of the event, e.g. ANIMATION_COMPLETED
+	 */
+	public String getCause() {
+		return cause;
+	}
+
+	/**
+	 * @return What has to be done about the transition, in order
+	 */
+	public List<DoorEffect> getEffects() {
+		return effects;
+	}
+
+	/**
+	 * @return Measured door travel time for <code>RECORD_TRAVEL_TIME</code>
+	 */
+	public long getTravelMillis() {
+		return travelMillis;
+	}
+
+	/**
+	 * @return How long the <code>PLAY_SYNCED_ANIMATION</code> animation should last
+	 */
+	public long getSyncedAnimationMillis() {
+		return syncedAnimationMillis;
+	}
+
+	@Override
+	public String toString() {
+		return cause + ": " + from + " => " + to + " " + effects;
+	}
+}
@@ -0,0 +1,14 @@
+package vace117.garage.opener.engine;
+
+/**
+ * Receives every <code>DoorTransition</code> made by a <code>DoorStateMachine</code>, in order, one at a time.
+ * <p>
+ * Called on whatever thread made the transition, so implementations must not block, and must not throw -
+ * an exception would stop the delivery of all later transitions.
+ *
+ * @author Val Blant
+ */
+public interface DoorTransitionListener {
+
+	public void transitioned(DoorTransition transition);
+}
@@ -0,0 +1,68 @@
+package vace117.garage.opener.engine;
+
+/**
+ * Everything <code>DoorControllerEngine</code> needs from a user interface.
+ * <p>
+ * Implementations must not block - anything that has to happen on a UI thread should be posted there. 
+ *
+ * @author Val Blant
+ */
+public interface DoorViewPort {
+	
+	/**
+	 * We are about to talk to the garage and don't know anything yet
+	 */
+	public void showConnecting();
+	
+	/**
+	 * Show the last known state of the door, while the live status is being fetched. The door must not accept knocks.
+	 */
+	public void showStaleDoor(GarageDoorState lastKnownState);
+	
+	/**
+	 * Show a door that is not moving and accepts knocks
+	 * 
+	 * @param state Either OPEN or CLOSED
+	 */
+	public void showDoor(GarageDoorState state);
+	
+	/**
+	 * Stop accepting knocks until the next <code>showDoor()</code>
+	 */
+	public void disableDoor();
+	
+	/**
+	 * The door started moving. Show some progress until <code>playOpenAnimation()</code> or <code>playCloseAnimation()</code>. 
+	 */
+	public void startProgressAnimation();
+	
+	/**
+	 * Must call <code>DoorControllerEngine.animationCompleted()</code> when done
+	 */
+	public void playOpenAnimation();
+	
+	/**
+	 * Must call <code>DoorControllerEngine.animationCompleted()</code> when done
+	 */
+	public void playCloseAnimation();
+	
+	/**
+	 * Play the open or close animation at whatever rate makes it last <code>durationMillis</code>, so that it ends 
+	 * together with the physical door. Must call <code>DoorControllerEngine.animationCompleted()</code> when done.
+	 * 
+	 * @param targetState OPEN for the open animation, CLOSED for the close animation
+	 * @return <code>false</code> if the playback rate can't be controlled. Nothing is played in that case.
+	 */
+	public boolean playSyncedAnimation(GarageDoorState targetState, long durationMillis);
+	
+	public void hideAnimation();
+	
+	/**
+	 * A hint about which animation is likely to be needed next, so it can be loaded ahead of time.
+	 * 
+	 * @param nextState MOVING for the progress animation, OPEN or CLOSED for the open or close animation
+	 */
+	public void preloadAnimationFor(GarageDoorState nextState);
+	
+	public void showError(Throwable e);
+}
@@ -0,0 +1,8 @@
+package vace117.garage.opener.engine;
+
+/**
+ * States of the garage door, as far as the controller can tell
+ *
+ * @author Val Blant
+ */
+public enum GarageDoorState {OPEN, CLOSED, MOVING}
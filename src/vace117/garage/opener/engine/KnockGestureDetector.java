@@ -0,0 +1,74 @@
+package vace117.garage.opener.engine;
+
+/**
+ * Recognizes a "knock" - a number of taps that all land within a time window.
+ * <p>
+ * The times of the most recent taps are kept in a ring buffer, so recognizing a knock needs no timers,
+ * no threads and no allocation per tap. The knock is recognized the instant the last tap lands.
+ * <p>
+ * Not thread safe. All taps are expected to arrive on the UI thread.
+ *
+ * @author Val Blant
+ */
+public class KnockGestureDetector {
+	
+	private final long[] tapTimes;
+	private int nextTap;
+	private int tapCount;
+	
+	private final long windowMillis;
+	
+	
+	/**
+	 * @param requiredTaps Number of taps that make up a knock
+	 * @param windowMillis All taps must land within this many ms of the first one
+	 */
+	public KnockGestureDetector(int requiredTaps, long windowMillis) {
+		if ( requiredTaps < 1 ) {
+			throw new IllegalArgumentException("A knock needs at least one tap");
+		}
+		
+		this.tapTimes = new long[requiredTaps];
+		this.windowMillis = windowMillis;
+	}
+	
+	/**
+	 * Records a tap.
+	 * 
+	 * @param tapTimeMillis When the tap happened. Must come from a monotonic clock, such as <code>SystemClock.uptimeMillis()</code>
+	 * @return <code>true</code> if this tap completes a knock. The detector starts over after a knock is recognized.
+	 */
+	public boolean onTap(long tapTimeMillis) {
+		tapTimes[nextTap] = tapTimeMillis;
+		nextTap = (nextTap + 1) % tapTimes.length;
+		if ( tapCount < tapTimes.length ) tapCount++;
+		
+		if ( tapCount == tapTimes.length ) {
+			// The buffer is full, so the oldest tap is the one we are about to overwrite next
+			//
+			long firstTapTime = tapTimes[nextTap];
+			
+			if ( tapTimeMillis - firstTapTime <= windowMillis ) {
+				reset();
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Forgets all taps seen so far
+	 */
+	public void reset() {
+		tapCount = 0;
+		nextTap = 0;
+	}
+	
+	/**
+	 * @return Number of taps that make up a knock. A recognized knock is made of the last this many taps.
+	 */
+	public int getRequiredTaps() {
+		return tapTimes.length;
+	}
+}
@@ -0,0 +1,114 @@
+package vace117.garage.opener.engine;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Single-flight coalescing of door status requests.
+ * <p>
+ * The polling timer, <code>animationCompleted()</code> and <code>start()</code> can all ask for the door status
+ * at the same time. Rather than running a connect + handshake + GET_STATUS for each of them, the first caller
+ * performs the network request and every caller that arrives while it is in flight waits for, and receives,
+ * the same result.
+ * <p>
+ * A successful result is also remembered for a short time (the TTL), so that a burst of requests arriving just
+ * after a fetch completes does not immediately go back to the network.
+ * <p>
+ * <code>invalidate()</code> starts a new generation. A request that was already in flight may have been answered before
+ * the command went out, so its result is still handed to the callers that were waiting for it, but it isn't cached, and
+ * callers that arrive after the invalidation don't join it.
+ *
+ * @author Val Blant
+ */
+public class StatusRequestCoalescer {
+
+	private final Callable<String> statusFetcher;
+	private final long ttlNanos;
+
+	private FutureTask<String> inFlightRequest;
+	private long generation = 0;
+
+	private String cachedStatus;
+	private long cachedStatusTime;
+
+
+	/**
+	 * @param statusFetcher Performs the actual network request
+	 * @param ttlMillis How long a fetched status may be handed out without asking the server again. 0 disables the cache.
+	 */
+	public StatusRequestCoalescer(Callable<String> statusFetcher, long ttlMillis) {
+		this.statusFetcher = statusFetcher;
+		this.ttlNanos = ttlMillis * 1000000L;
+	}
+
+	/**
+	 * Returns the door status, joining a request that is already in flight if there is one.
+	 *
+	 * @throws IllegalStateException if the shared request failed. All waiting callers receive the same failure.
+	 */
+	public String getStatus() {
+		FutureTask<String> request;
+		boolean isOwner = false;
+		long requestGeneration;
+
+		synchronized (this) {
+			if ( cachedStatus != null && System.nanoTime() - cachedStatusTime < ttlNanos ) {
+				return cachedStatus;
+			}
+
+			if ( inFlightRequest == null ) {
+				inFlightRequest = new FutureTask<String>(statusFetcher);
+				isOwner = true;
+			}
+			request = inFlightRequest;
+			requestGeneration = generation;
+		}
+
+		if ( isOwner ) {
+			// The first caller does the work on its own thread
+			//
+			request.run();
+
+			synchronized (this) {
+				if ( inFlightRequest == request ) inFlightRequest = null;
+
+				String status = getResult(request, false);
+				if ( status != null && requestGeneration == generation ) {
+					cachedStatus = status;
+					cachedStatusTime = System.nanoTime();
+				}
+			}
+		}
+
+		return getResult(request, true);
+	}
+
+	/**
+	 * Forgets the cached status. Must be called whenever a command that changes the door state is sent.
+	 */
+	public synchronized void invalidate() {
+		generation++;
+		cachedStatus = null;
+		inFlightRequest = null; // Its owner still finishes it for the callers that joined it
+	}
+
+
+	private String getResult(FutureTask<String> request, boolean rethrow) {
+		try {
+			return request.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for door status", e);
+		} catch (ExecutionException e) {
+			if ( !rethrow ) return null;
+
+			Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Unable to get door status", cause);
+		}
+	}
+
+}
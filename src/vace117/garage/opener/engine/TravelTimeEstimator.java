@@ -0,0 +1,72 @@
+package vace117.garage.opener.engine;
+
+/**
+ * Learns how long the physical door takes to open and to close.
+ * <p>
+ * Each direction is tracked separately as an exponentially weighted moving average of the measured travel times,
+ * so the estimate follows slow changes (cold weather, a worn opener) without being thrown off by a single odd
+ * measurement. The estimates are kept in the <code>DoorStateMemory</code>, so they survive restarts.
+ *
+ * @author Val Blant
+ */
+public class TravelTimeEstimator {
+
+	/**
+	 * Weight of the newest measurement
+	 */
+	private static final double ALPHA = 0.3;
+
+	/**
+	 * Measurements outside of this range are not door travel times, e.g. the door was stopped half way
+	 */
+	private static final long MIN_TRAVEL_MILLIS = 1000;
+	private static final long MAX_TRAVEL_MILLIS = 60000;
+
+	private final DoorStateMemory doorStateMemory;
+
+	private long openingMillis;
+	private long closingMillis;
+
+
+	public TravelTimeEstimator(DoorStateMemory doorStateMemory) {
+		this.doorStateMemory = doorStateMemory;
+
+		openingMillis = doorStateMemory.getTravelTime(GarageDoorState.OPEN);
+		closingMillis = doorStateMemory.getTravelTime(GarageDoorState.CLOSED);
+	}
+
+	/**
+	 * @param direction OPEN for opening, CLOSED for closing
+	 * @return Expected travel time in ms, or 0 if we haven't measured this direction yet
+	 */
+	public synchronized long getEstimate(GarageDoorState direction) {
+		return direction == GarageDoorState.OPEN ? openingMillis : closingMillis;
+	}
+
+	/**
+	 * Folds a new measurement into the estimate for the given direction
+	 *
+	 * @param direction OPEN for opening, CLOSED for closing
+	 * @param travelMillis How long the door took to get there
+	 */
+	public synchronized void record(GarageDoorState direction, long travelMillis) {
+		if ( travelMillis < MIN_TRAVEL_MILLIS || travelMillis > MAX_TRAVEL_MILLIS ) return;
+
+		long estimate = getEstimate(direction);
+		if ( estimate > 0 ) {
+			estimate = Math.round(ALPHA * travelMillis + (1 - ALPHA) * estimate);
+		}
+		else {
+			estimate = travelMillis;
+		}
+
+		if ( direction == GarageDoorState.OPEN ) {
+			openingMillis = estimate;
+		}
+		else {
+			closingMillis = estimate;
+		}
+
+		doorStateMemory.saveTravelTime(direction, estimate);
+	}
+}
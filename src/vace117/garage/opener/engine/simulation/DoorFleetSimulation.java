@@ -0,0 +1,168 @@
+package vace117.garage.opener.engine.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import vace117.garage.opener.engine.DoorControllerEngine;
+import vace117.garage.opener.engine.DoorSnapshot;
+import vace117.garage.opener.engine.DoorStateListener;
+import vace117.garage.opener.engine.DoorStateMemory;
+import vace117.garage.opener.engine.GarageDoorState;
+import vace117.garage.opener.secure.channel.test.DoorScenario;
+
+/**
+ * Stress test for <code>DoorControllerEngine</code> that runs on a plain JVM.
+ * <p>
+ * Drives thousands of simulated doors concurrently, each one with its own engine, toggling them over and over.
+ * All engines share one thread pool, which is where the polling, commands and animation callbacks run. 
+ * At the end, the throughput of the state machine and any inconsistencies are reported.
+ * <p>
+ * Each engine's <code>DoorStatePublisher</code> has a slow subscriber on one shared thread, to show how far conflation
+ * lets it fall behind without holding anything else up.
+ * <pre>
+ * 	java vace117.garage.opener.engine.simulation.DoorFleetSimulation [doors] [seconds] [threads] [scenario]
+ * </pre>
+ *
+ * @author Val Blant
+ */
+public class DoorFleetSimulation {
+	
+	/**
+	 * Used unless a <code>DoorScenario</code> script is given on the command line 
+	 */
+	private static final String DEFAULT_SCENARIO = "travel=3000; latency=5";
+	private static final long ANIMATION_MILLIS = 200;
+	private static final long POLL_PERIOD_MILLIS = 100;
+	private static final long TOGGLE_PERIOD_MILLIS = 500;
+	private static final long WIDGET_REDRAW_MILLIS = 5;
+	
+	private static final Executor DIRECT = new Executor() {
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+	
+	/**
+	 * Keeps the last known state in memory instead of on disk
+	 */
+	private static class InMemoryDoorStateMemory implements DoorStateMemory {
+		private volatile GarageDoorState state;
+		private volatile long stateTime;
+		private volatile long openingMillis;
+		private volatile long closingMillis;
+
+		@Override
+		public GarageDoorState getLastKnownState() {
+			return state;
+		}
+
+		@Override
+		public long getLastKnownStateTime() {
+			return stateTime;
+		}
+
+		@Override
+		public void save(GarageDoorState state) {
+			this.state = state;
+			this.stateTime = System.currentTimeMillis();
+		}
+
+		@Override
+		public long getTravelTime(GarageDoorState direction) {
+			return direction == GarageDoorState.OPEN ? openingMillis : closingMillis;
+		}
+
+		@Override
+		public void saveTravelTime(GarageDoorState direction, long travelMillis) {
+			if ( direction == GarageDoorState.OPEN ) openingMillis = travelMillis;
+			else closingMillis = travelMillis;
+		}
+	}
+
+	
+	public static void main(String[] args) throws InterruptedException {
+		int doorCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		DoorScenario scenario = DoorScenario.parse(args.length > 3 ? args[3] : DEFAULT_SCENARIO);
+		
+		System.out.println("Simulating " + doorCount + " doors for " + seconds + "s on " + threads + " threads...");
+		System.out.println("Scenario: " + scenario);
+		
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(threads);
+		final SimulatedViewPort.Statistics statistics = new SimulatedViewPort.Statistics();
+		
+		// Every door also has a widget that takes a while to redraw. They all share one thread, so they fall behind.
+		//
+		ExecutorService widgetThread = Executors.newSingleThreadExecutor();
+		
+		final List<DoorControllerEngine> engines = new ArrayList<DoorControllerEngine>(doorCount);
+		for ( int i = 0; i < doorCount; i++ ) {
+			SimulatedDoorClient door = new SimulatedDoorClient(scenario, statistics.messages);
+			SimulatedViewPort viewPort = new SimulatedViewPort(door, statistics, executor, ANIMATION_MILLIS);
+			
+			final DoorControllerEngine engine = new DoorControllerEngine(door, viewPort, new InMemoryDoorStateMemory(), executor);
+			engine.setMovingDoorPollPeriod(POLL_PERIOD_MILLIS);
+			viewPort.setEngine(engine);
+			engines.add(engine);
+			
+			engine.getDoorStates().subscribe(new DoorStateListener() {
+				public void doorStateChanged(DoorSnapshot state) {
+					statistics.statesPublished.incrementAndGet();
+				}
+			}, DIRECT);
+			engine.getDoorStates().subscribe(new DoorStateListener() {
+				public void doorStateChanged(DoorSnapshot state) {
+					statistics.widgetUpdates.incrementAndGet();
+					try {
+						Thread.sleep(WIDGET_REDRAW_MILLIS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, widgetThread);
+			
+			executor.execute(new Runnable() {
+				public void run() {
+					engine.start();
+				}
+			});
+			
+			// Toggle every door that is resting
+			//
+			executor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					GarageDoorState state = engine.getDoorState();
+					if ( GarageDoorState.OPEN.equals(state) || GarageDoorState.CLOSED.equals(state) ) {
+						engine.toggleDoor();
+					}
+				}
+			}, TOGGLE_PERIOD_MILLIS, TOGGLE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		
+		long startTime = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+		
+		executor.shutdownNow();
+		widgetThread.shutdownNow();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+		
+		System.out.println("Messages sent:        " + statistics.messages.get() 
+				+ String.format(" (%.0f/s)", statistics.messages.get() / elapsedSeconds));
+		System.out.println("Animations played:    " + statistics.animationsPlayed.get()
+				+ String.format(" (%.1f/s)", statistics.animationsPlayed.get() / elapsedSeconds));
+		System.out.println("Synced to travel:     " + statistics.syncedAnimationsPlayed.get());
+		System.out.println("Doors shown:          " + statistics.doorsShown.get());
+		System.out.println("Wrong doors shown:    " + statistics.wrongDoorsShown.get());
+		System.out.println("States published:     " + statistics.statesPublished.get());
+		System.out.println("Slow widget updates:  " + statistics.widgetUpdates.get());
+		System.out.println("Errors:               " + statistics.errors.get());
+	}
+
+}
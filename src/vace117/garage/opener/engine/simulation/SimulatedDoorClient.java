@@ -0,0 +1,79 @@
+package vace117.garage.opener.engine.simulation;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vace117.garage.opener.secure.channel.AbstractSecureChannelClient;
+import vace117.garage.opener.secure.channel.BatchResponse;
+import vace117.garage.opener.secure.channel.CommandBatch;
+import vace117.garage.opener.secure.channel.Conversation;
+import vace117.garage.opener.secure.channel.ConversationExpiredException;
+import vace117.garage.opener.secure.channel.SecurityException;
+import vace117.garage.opener.secure.channel.SnapshotListener;
+import vace117.garage.opener.secure.channel.test.DoorScenario;
+import vace117.garage.opener.secure.channel.test.ScriptedDoor;
+
+/**
+ * A simulated garage door behind a secure channel. The door itself is a <code>ScriptedDoor</code>, so its travel time,
+ * latency and faults come from a <code>DoorScenario</code>.
+ * <p>
+ * Thread safe, so any number of controllers and pollers can talk to it at once.
+ *
+ * @author Val Blant
+ */
+public class SimulatedDoorClient extends AbstractSecureChannelClient {
+	
+	private final ScriptedDoor door;
+	private final AtomicLong messageCount;
+	
+	
+	/**
+	 * @param scenario How the door behaves
+	 * @param messageCount Incremented for every message received. Can be shared between doors.
+	 */
+	public SimulatedDoorClient(DoorScenario scenario, AtomicLong messageCount) {
+		super(null);
+		this.door = new ScriptedDoor(scenario);
+		this.messageCount = messageCount;
+	}
+	
+	@Override
+	public void openCommunicationChannel() throws IOException {
+	}
+
+	@Override
+	public void closeCommunicationChannel() throws IOException {
+	}
+
+	@Override
+	public Conversation createConversation() throws SecurityException, IOException {
+		door.handshake();
+		
+		return new Conversation() {
+			@Override
+			public String sendMessage(String message) throws ConversationExpiredException, SecurityException, IOException {
+				messageCount.incrementAndGet();
+				
+				return door.execute(message);
+			}
+
+			@Override
+			public BatchResponse sendBatch(CommandBatch batch) throws ConversationExpiredException, SecurityException, IOException {
+				return batch.sendSequentially(this);
+			}
+
+			@Override
+			public byte[] requestSnapshot(SnapshotListener listener) throws ConversationExpiredException, SecurityException, IOException {
+				throw new IOException("Simulated doors have no camera");
+			}
+		};
+	}
+	
+	/**
+	 * @return The actual state of the door, which the controller can only find out with GET_STATUS
+	 */
+	public String getActualStatus() {
+		return door.getActualStatus();
+	}
+
+}
@@ -0,0 +1,130 @@
+package vace117.garage.opener.engine.simulation;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vace117.garage.opener.engine.DoorControllerEngine;
+import vace117.garage.opener.engine.DoorViewPort;
+import vace117.garage.opener.engine.GarageDoorState;
+
+/**
+ * A <code>DoorViewPort</code> without a screen. It counts what the engine asked it to show, checks what it 
+ * was asked to show against the actual simulated door, and "plays" animations by waiting for a while.
+ *
+ * @author Val Blant
+ */
+public class SimulatedViewPort implements DoorViewPort {
+	
+	/**
+	 * Counters shared by all doors in a simulation
+	 */
+	public static class Statistics {
+		public final AtomicLong messages = new AtomicLong();
+		public final AtomicLong doorsShown = new AtomicLong();
+		public final AtomicLong animationsPlayed = new AtomicLong();
+		public final AtomicLong syncedAnimationsPlayed = new AtomicLong();
+		public final AtomicLong wrongDoorsShown = new AtomicLong();
+		public final AtomicLong statesPublished = new AtomicLong();
+		public final AtomicLong widgetUpdates = new AtomicLong();
+		public final AtomicLong errors = new AtomicLong();
+	}
+
+	private final SimulatedDoorClient door;
+	private final Statistics statistics;
+	private final ScheduledExecutorService executor;
+	private final long animationMillis;
+	
+	private DoorControllerEngine engine;
+	private volatile Throwable lastError;
+	
+	
+	public SimulatedViewPort(SimulatedDoorClient door, Statistics statistics, ScheduledExecutorService executor, long animationMillis) {
+		this.door = door;
+		this.statistics = statistics;
+		this.executor = executor;
+		this.animationMillis = animationMillis;
+	}
+	
+	public void setEngine(DoorControllerEngine engine) {
+		this.engine = engine;
+	}
+	
+	public Throwable getLastError() {
+		return lastError;
+	}
+	
+	@Override
+	public void showConnecting() {
+	}
+
+	@Override
+	public void showStaleDoor(GarageDoorState lastKnownState) {
+	}
+
+	@Override
+	public void showDoor(GarageDoorState state) {
+		statistics.doorsShown.incrementAndGet();
+		
+		// The door may have legitimately started moving since its status was fetched, but it 
+		// can't be resting in the opposite position
+		//
+		String actualStatus = door.getActualStatus();
+		if ( !actualStatus.equals("DOOR_MOVING") && !actualStatus.equals("DOOR_" + state.name()) ) {
+			statistics.wrongDoorsShown.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void disableDoor() {
+	}
+
+	@Override
+	public void startProgressAnimation() {
+	}
+
+	@Override
+	public void playOpenAnimation() {
+		playAnimation();
+	}
+
+	@Override
+	public void playCloseAnimation() {
+		playAnimation();
+	}
+
+	@Override
+	public boolean playSyncedAnimation(GarageDoorState targetState, long durationMillis) {
+		statistics.syncedAnimationsPlayed.incrementAndGet();
+		playAnimation(durationMillis);
+		return true;
+	}
+
+	@Override
+	public void hideAnimation() {
+	}
+
+	@Override
+	public void preloadAnimationFor(GarageDoorState nextState) {
+	}
+
+	@Override
+	public void showError(Throwable e) {
+		statistics.errors.incrementAndGet();
+		lastError = e;
+	}
+	
+	private void playAnimation() {
+		playAnimation(animationMillis);
+	}
+	
+	private void playAnimation(long durationMillis) {
+		statistics.animationsPlayed.incrementAndGet();
+		executor.schedule(new Runnable() {
+			public void run() {
+				engine.animationCompleted();
+			}
+		}, durationMillis, TimeUnit.MILLISECONDS);
+	}
+
+}
@@ -2,6 +2,8 @@ package vace117.garage.opener.secure.channel;
 
 import java.io.IOException;
 
+import vace117.garage.opener.trace.DoorHistory;
+
 
 /**
  * Provides a secure request/response style communication with a server. 
@@ -14,6 +16,8 @@ public abstract class AbstractSecureChannelClient {
 	
 	protected CommunicationChannel commChannel;
 	
+	private volatile int doorNumber = DoorHistory.NO_DOOR;
+	
 	
 	public AbstractSecureChannelClient(CommunicationChannel commChannel) {
 		this.commChannel = commChannel;
@@ -28,5 +32,16 @@ public abstract class AbstractSecureChannelClient {
 	}
 	
 	public abstract Conversation createConversation() throws SecurityException, IOException;
+	
+	/**
+	 * @param doorNumber Identifies the door in the <code>DoorHistory</code>
+	 */
+	public void setDoorNumber(int doorNumber) {
+		this.doorNumber = doorNumber;
+	}
+	
+	public int getDoorNumber() {
+		return doorNumber;
+	}
 
 }
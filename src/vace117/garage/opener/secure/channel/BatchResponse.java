@@ -0,0 +1,41 @@
+package vace117.garage.opener.secure.channel;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results of a <code>CommandBatch</code>, in the same order as the commands.
+ *
+ * @author Val Blant
+ */
+public class BatchResponse {
+	private List<String> responses;
+
+	public BatchResponse(List<String> responses) {
+		this.responses = Collections.unmodifiableList(responses);
+	}
+	
+	public String get(int commandIndex) {
+		return responses.get(commandIndex);
+	}
+	
+	/**
+	 * @return Response to the last command in the batch. For a batch ending with <code>GET_STATUS</code>, this is the door status.
+	 */
+	public String getLast() {
+		return responses.get(responses.size() - 1);
+	}
+	
+	public List<String> getResponses() {
+		return responses;
+	}
+	
+	public int size() {
+		return responses.size();
+	}
+	
+	@Override
+	public String toString() {
+		return responses.toString();
+	}
+}
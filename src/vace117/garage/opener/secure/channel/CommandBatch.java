@@ -0,0 +1,74 @@
+package vace117.garage.opener.secure.channel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ordered group of commands to be delivered to the server in a single authenticated frame,
+ * for example <code>OPEN</code> followed by <code>GET_STATUS</code>.
+ * <p>
+ * The server executes the commands in order and returns all of the results in one response frame,
+ * as a <code>BatchResponse</code>.
+ *
+ * @author Val Blant
+ */
+public class CommandBatch {
+	/**
+	 * Separates commands and responses inside a batch frame. Commands never contain it.
+	 */
+	public static final char SEPARATOR = '\n';
+	
+	private List<String> commands = new ArrayList<String>();
+
+	public CommandBatch(String... commands) {
+		for ( String command : commands ) {
+			add(command);
+		}
+	}
+	
+	public CommandBatch add(String command) {
+		if ( command.indexOf(SEPARATOR) >= 0 ) {
+			throw new IllegalArgumentException("Commands can't contain line breaks: " + command);
+		}
+		
+		commands.add(command);
+		return this;
+	}
+	
+	public List<String> getCommands() {
+		return Collections.unmodifiableList(commands);
+	}
+	
+	public int size() {
+		return commands.size();
+	}
+	
+	/**
+	 * @return <code>true</code> if the batch contains anything besides the given command 
+	 */
+	public boolean containsCommandOtherThan(String command) {
+		for ( String c : commands ) {
+			if ( !c.equals(command) ) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Sends the commands one at a time. Used by <code>Conversation</code>s that can't put several commands in one frame.
+	 */
+	public BatchResponse sendSequentially(Conversation conversation) throws ConversationExpiredException, SecurityException, IOException {
+		List<String> responses = new ArrayList<String>(commands.size());
+		for ( String command : commands ) {
+			responses.add( conversation.sendMessage(command) );
+		}
+		
+		return new BatchResponse(responses);
+	}
+	
+	@Override
+	public String toString() {
+		return commands.toString();
+	}
+}
@@ -11,4 +11,18 @@ import java.io.IOException;
  */
 public interface Conversation {
 	public String sendMessage(String message) throws ConversationExpiredException, SecurityException, IOException;
+	
+	/**
+	 * Sends several commands and returns all of their responses. Implementations that support it 
+	 * do this in a single round trip.
+	 */
+	public BatchResponse sendBatch(CommandBatch batch) throws ConversationExpiredException, SecurityException, IOException;
+	
+	/**
+	 * Asks the garage camera for a picture of the door, which arrives in several frames.
+	 * 
+	 * @param listener Told about every chunk as it arrives, so the picture can be shown early
+	 * @return The whole JPEG
+	 */
+	public byte[] requestSnapshot(SnapshotListener listener) throws ConversationExpiredException, SecurityException, IOException;
 }
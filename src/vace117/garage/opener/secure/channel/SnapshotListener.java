@@ -0,0 +1,20 @@
+package vace117.garage.opener.secure.channel;
+
+/**
+ * Follows a camera snapshot as it streams in from the garage, so it can be shown before all of it has arrived.
+ *
+ * @author Val Blant
+ */
+public interface SnapshotListener {
+
+	/**
+	 * Called on the thread that talks to the garage, after every chunk. The last call has
+	 * <code>receivedLength == totalLength</code>.
+	 * <p>
+	 * The first <code>receivedLength</code> bytes of the image never change afterwards, so they can be decoded on
+	 * another thread while the rest is still coming in. Must not block.
+	 *
+	 * @param image Buffer for the whole JPEG, filled up to <code>receivedLength</code>
+	 */
+	public void snapshotReceived(byte[] image, int receivedLength, int totalLength);
+}
@@ -3,19 +3,23 @@ package vace117.garage.opener.secure.channel.crypto;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.crypto.Cipher;
-import javax.crypto.Mac;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.SecretKey;
 
+import vace117.garage.opener.secure.channel.AbstractSecureChannelClient;
+import vace117.garage.opener.secure.channel.BatchResponse;
+import vace117.garage.opener.secure.channel.CommandBatch;
 import vace117.garage.opener.secure.channel.CommunicationChannel;
 import vace117.garage.opener.secure.channel.Conversation;
 import vace117.garage.opener.secure.channel.ConversationExpiredException;
 import vace117.garage.opener.secure.channel.SecurityException;
-import vace117.garage.opener.secure.channel.AbstractSecureChannelClient;
+import vace117.garage.opener.secure.channel.SnapshotListener;
+import vace117.garage.opener.trace.DoorHistory;
+import vace117.garage.opener.trace.HistoryEvent;
+import vace117.garage.opener.trace.LatencyTracer;
+import vace117.garage.opener.trace.TraceStage;
 
 /**
  * Provides a secure request/response style communication with a server. 
@@ -38,42 +42,181 @@ import vace117.garage.opener.secure.channel.AbstractSecureChannelClient;
  * <p>
  * After obtaining an instance of <code>SecureConversation</code>, users can send any 
  * messages they wish via <code>String SecureConversation.sendMessage(String)</code>
+ * <p>
+ * Several commands can also be sent in one frame via <code>SecureConversation.sendBatch(CommandBatch)</code>.
+ * The batch payload is the word <code>BATCH</code> followed by the commands, each on its own line. 
+ * The server answers with <code>BATCH</code> followed by one result per line:
+ * <pre>
+ * 		Client) [conversationToken, "BATCH\nOPEN\nGET_STATUS"]
+ * 		Spark)  "BATCH\nDOOR_MOVING\nDOOR_MOVING"
+ * </pre>
+ * Batches are only sent with <code>setBatching(true)</code>, for servers that are known to handle them. Otherwise the
+ * commands are sent one at a time. Finding out by trying isn't an option: a server that doesn't know about batches
+ * may act on part of the frame before answering with something else.
+ * <p>
+ * If something else does come back, the commands are sent one at a time from then on. A batch with a command that
+ * changes the door is never sent again, though. It fails instead, and only batches of <code>GET_STATUS</code> are retried.
+ * <p>
+ * A camera snapshot is too big for one frame, so <code>SNAPSHOT</code> is answered with a header that announces the
+ * size of the JPEG and of the chunks, followed by one frame per chunk:
+ * <pre>
+ * 		Client) [conversationToken, "SNAPSHOT"]
+ * 		Spark)  "SNAPSHOT 23456 4096"
+ * 		Spark)  [Chunk_Number[2], JPEG bytes[4096]]
+ * 		...
+ * 		Spark)  [Chunk_Number[2], JPEG bytes[3976]]
+ * </pre>
+ * Every chunk is encrypted and authenticated like any other frame. Chunk_Number is little endian and starts at 0, so
+ * chunks can't be dropped or reordered on the way. Anything other than the header means that the server has no camera.
+ * <p>
+ * With <code>setZeroRoundTrip(true)</code>, a conversation skips the handshake. The client makes up its own nonce
+ * and takes the next value of a counter that only ever goes up, and the first message carries both:
+ * <pre>
+ * 		Client 1) Calculate conversationToken = HMAC(Key, Nonce[16], Counter[8])
+ * 		Client 2) encryptSendAndWaitForResponse(["0RTT", Nonce[16], Counter[8], MESSAGE])
+ * 		Spark 1) Check that Counter is higher than any it has accepted before, and close to its own clock
+ * 		Spark 2) Calculate the same conversationToken, and start 5 second timer
+ * 		Spark 3) SparkResponse("0RTT\n" + response to MESSAGE)
+ * </pre>
+ * Counter is little endian. The rest of the conversation uses the token as usual. A replayed first message has a
+ * counter that was already used, so it's refused with <code>ZERO_RTT_REJECTED</code>, and then the client falls back to
+ * the handshake and sends the message again. A server that doesn't know about 0-RTT doesn't recognize the frame as a
+ * command, so the client also falls back when anything else comes back, and doesn't try 0-RTT with it again. Unless the
+ * answer was <code>SESSION_EXPIRED</code>, such a server may have acted on the message anyway, so a message that
+ * can move the door is not sent again. The caller gets an <code>IOException</code> instead.
  *
- * @see AESChannelClient#encryptSendAndWaitForResponse(byte[]) encryptSendAndWaitForResponse() for details of how messages are encoded 
+ * @see AESFrameCodec for details of how messages are encoded 
  * 
  * @author Val Blant
  */
 public class AESChannelClient extends AbstractSecureChannelClient {
 	
-	private SecureRandom random = new SecureRandom();
+	private static final String BATCH_HEADER = "BATCH" + CommandBatch.SEPARATOR;
+	
+	/**
+	 * The largest plain text payload that fits into one outgoing frame 
+	 */
+	private static final int MAX_PAYLOAD_SIZE = 127;
+	
+	private static final String SNAPSHOT_HEADER = "SNAPSHOT ";
+	private static final int CHUNK_NUMBER_SIZE = 2;
+	
+	/**
+	 * Bigger snapshots are refused, so a bad header can't make us allocate a lot of memory
+	 */
+	private static final int MAX_SNAPSHOT_SIZE = 4 * 1024 * 1024;
+	
+	public static final String ZERO_RTT_HEADER = "0RTT";
+	public static final String ZERO_RTT_RESPONSE_HEADER = ZERO_RTT_HEADER + CommandBatch.SEPARATOR;
+	public static final String ZERO_RTT_REJECTED = "ZERO_RTT_REJECTED";
+	public static final int ZERO_RTT_NONCE_SIZE = 16;
+	
+	/**
+	 * What comes before the message in the first frame of a 0-RTT conversation
+	 */
+	public static final int ZERO_RTT_PREFIX_SIZE = ZERO_RTT_HEADER.length() + ZERO_RTT_NONCE_SIZE + 8;
+	
+	
+	/**
+	 * Only set for servers that are known to handle batches. Cleared if the server turns out not to.
+	 */
+	private volatile boolean isBatchingSupported = false;
+	
+	/**
+	 * Only set for servers that are known to handle 0-RTT. Cleared if the server turns out not to.
+	 */
+	private volatile boolean isZeroRoundTrip = false;
+
+	private final AESFrameCodec codec;
 
 	public AESChannelClient(CommunicationChannel commChannel) {
+		this(commChannel, AESFrameCodec.forMasterKey());
+	}
+	
+	/**
+	 * Talks to a server that uses the given key instead of the Master Key, e.g. in a test
+	 */
+	public AESChannelClient(CommunicationChannel commChannel, SecretKey key) {
+		this(commChannel, new AESFrameCodec(key));
+	}
+	
+	/**
+	 * Talks to a server that uses one of the keys in the <code>KeyRegistry</code>
+	 */
+	public AESChannelClient(CommunicationChannel commChannel, KeyContext keys) {
+		this(commChannel, new AESFrameCodec(keys));
+	}
+	
+	private AESChannelClient(CommunicationChannel commChannel, AESFrameCodec codec) {
 		super(commChannel);
-		
-		PRNGFixes.apply();
+		this.codec = codec;
 	}
 
+	/**
+	 * @param isZeroRoundTrip <code>true</code> to send the first message of every conversation without a handshake first.
+	 * 		Only for servers that support it, since the first conversation with any other server takes an extra round trip.
+	 */
+	public void setZeroRoundTrip(boolean isZeroRoundTrip) {
+		this.isZeroRoundTrip = isZeroRoundTrip;
+	}
+	
+	/**
+	 * @param isBatchingSupported <code>true</code> to send batches in one frame. Only for servers that support it.
+	 */
+	public void setBatching(boolean isBatchingSupported) {
+		this.isBatchingSupported = isBatchingSupported;
+	}
+	
+	/**
+	 * For a 0-RTT conversation, nothing is sent until the first message
+	 */
 	public Conversation createConversation() throws SecurityException, IOException {
+		if ( isZeroRoundTrip ) {
+			return new AESSecuredConversation(this, null);
+		}
+		
+		return new AESSecuredConversation(this, handshake());
+	}
+	
+	/**
+	 * The conversation establishment handshake
+	 */
+	private ConversationToken handshake() throws SecurityException, IOException {
+		long handshakeStartTime = LatencyTracer.now();
 		byte[] conversationNonce = encryptSendAndWaitForResponse("NEED_CHALLENGE".getBytes());
+		ConversationToken token = new ConversationToken(conversationNonce, codec.getKeys());
+		LatencyTracer.record(TraceStage.HANDSHAKE, handshakeStartTime);
+		DoorHistory.record(HistoryEvent.HANDSHAKE, getDoorNumber(), (LatencyTracer.now() - handshakeStartTime) / 1000000);
 		
-		return new AESSecuredConversation(this, new ConversationToken(conversationNonce));
+		return token;
 	}
 	
 	/**
-	 * Send a message as part of an established Conversation
+	 * Send a message as part of a Conversation. Establishes the conversation first, if this is its first message.
 	 * 
 	 * @param message
-	 * @param token
+	 * @param conversation
 	 * @return
 	 * @throws ConversationExpiredException
 	 */
-	String sendMessage(String message, ConversationToken token) throws ConversationExpiredException, SecurityException, IOException {
+	String sendMessage(String message, AESSecuredConversation conversation) throws ConversationExpiredException, SecurityException, IOException {
+		if ( conversation.getToken() == null ) {
+			String response = sendZeroRoundTripMessage(message, conversation);
+			if ( response != null ) {
+				return response;
+			}
+		}
+		
 		// The format of the message is [conversationToken, MESSAGE]
 		//
+		ConversationToken token = conversation.getToken();
 		ByteBuffer payload = ByteBuffer.allocate(token.getBytes().length + message.getBytes().length);
 		payload.put(token.getBytes()).put(message.getBytes());
 		
+		long commandStartTime = LatencyTracer.now();
 		byte[] plainTextResponse = encryptSendAndWaitForResponse(payload.array());
+		LatencyTracer.record(TraceStage.COMMAND, commandStartTime);
+		DoorHistory.record(HistoryEvent.COMMAND, getDoorNumber(), (LatencyTracer.now() - commandStartTime) / 1000000);
 		
 		String response = new String(plainTextResponse);
 		
@@ -84,20 +227,181 @@ public class AESChannelClient extends AbstractSecureChannelClient {
 		return response;
 	}
 	
+	/**
+	 * Sends the message in the first frame of a 0-RTT conversation.
+	 * <p>
+	 * If the server refuses it, the handshake is done instead, and the conversation gets the negotiated token. The server
+	 * hasn't acted on the message in that case, so it can be sent again. If the server doesn't know about 0-RTT, only
+	 * messages that can't move the door are sent again.
+	 * 
+	 * @return The response, or <code>null</code> if the message still needs to be sent
+	 */
+	private String sendZeroRoundTripMessage(String message, AESSecuredConversation conversation) throws ConversationExpiredException, SecurityException, IOException {
+		byte[] nonce = new byte[ZERO_RTT_NONCE_SIZE];
+		BufferedEntropySource.getInstance().nextBytes(nonce);
+		long counter = codec.getKeys().nextZeroRoundTripCounter();
+		
+		ByteBuffer payload = ByteBuffer.allocate(ZERO_RTT_PREFIX_SIZE + message.getBytes().length).order(ByteOrder.LITTLE_ENDIAN);
+		payload.put(ZERO_RTT_HEADER.getBytes()).put(nonce).putLong(counter).put(message.getBytes());
+		
+		long commandStartTime = LatencyTracer.now();
+		String response = new String(encryptSendAndWaitForResponse(payload.array()));
+		
+		if ( response.startsWith(ZERO_RTT_RESPONSE_HEADER) ) {
+			LatencyTracer.record(TraceStage.COMMAND, commandStartTime);
+			DoorHistory.record(HistoryEvent.COMMAND, getDoorNumber(), (LatencyTracer.now() - commandStartTime) / 1000000);
+			conversation.setToken(ConversationToken.forZeroRoundTrip(nonce, counter, codec.getKeys()));
+			
+			response = response.substring(ZERO_RTT_RESPONSE_HEADER.length());
+			if ( "SESSION_EXPIRED".equals(response) ) {
+				throw new ConversationExpiredException();
+			}
+			return response;
+		}
+		
+		if ( !ZERO_RTT_REJECTED.equals(response) ) {
+			isZeroRoundTrip = false; // The server doesn't know about 0-RTT
+			
+			// Sending OPEN or CLOSE again could toggle the door twice
+			//
+			if ( !"SESSION_EXPIRED".equals(response) && canMoveTheDoor(message) ) {
+				throw new IOException("The garage didn't understand a 0-RTT " + message + ", and may have executed it: " + response);
+			}
+		}
+		conversation.setToken(handshake());
+		return null;
+	}
+	
+	/**
+	 * @param message A single command or a batch
+	 * @return <code>false</code> if the message only asks for the status or a snapshot
+	 */
+	private static boolean canMoveTheDoor(String message) {
+		String[] commands = message.startsWith(BATCH_HEADER) 
+				? message.substring(BATCH_HEADER.length()).split(String.valueOf(CommandBatch.SEPARATOR)) 
+				: new String[] {message};
+		
+		for ( String command : commands ) {
+			if ( !"GET_STATUS".equals(command) && !"SNAPSHOT".equals(command) ) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return How many bytes come before the message in the conversation's next frame
+	 */
+	private static int getMessagePrefixSize(AESSecuredConversation conversation) {
+		return conversation.getToken() == null ? ZERO_RTT_PREFIX_SIZE : ConversationToken.LENGTH;
+	}
+	
+	/**
+	 * Send several commands in one frame as part of a Conversation
+	 * 
+	 * @param batch
+	 * @param conversation Also used to send the commands one at a time if the server can't handle batches 
+	 * @return
+	 * @throws ConversationExpiredException
+	 */
+	BatchResponse sendBatch(CommandBatch batch, AESSecuredConversation conversation) throws ConversationExpiredException, SecurityException, IOException {
+		if ( batch.size() == 1 ) {
+			return batch.sendSequentially(conversation);
+		}
+
+		StringBuilder message = new StringBuilder(BATCH_HEADER);
+		for ( String command : batch.getCommands() ) {
+			message.append(command).append(CommandBatch.SEPARATOR);
+		}
+		message.setLength(message.length() - 1);
+
+		if ( !isBatchingSupported || getMessagePrefixSize(conversation) + message.length() > MAX_PAYLOAD_SIZE ) {
+			return batch.sendSequentially(conversation);
+		}
+		
+		String response = sendMessage(message.toString(), conversation);
+		
+		if ( response.startsWith(BATCH_HEADER) ) {
+			List<String> responses = new ArrayList<String>(batch.size());
+			int start = BATCH_HEADER.length();
+			while ( start <= response.length() ) {
+				int end = response.indexOf(CommandBatch.SEPARATOR, start);
+				if ( end < 0 ) end = response.length();
+				
+				responses.add( response.substring(start, end) );
+				start = end + 1;
+			}
+			
+			if ( responses.size() != batch.size() ) {
+				throw new IOException("Expected " + batch.size() + " responses to " + batch + ", but got " + responses);
+			}
+			
+			return new BatchResponse(responses);
+		}
+		else {
+			isBatchingSupported = false;
+			
+			// Sending OPEN or CLOSE again could toggle the door twice
+			//
+			if ( batch.containsCommandOtherThan("GET_STATUS") ) {
+				throw new IOException("The garage didn't understand " + batch + ", and may have executed part of it: " + response);
+			}
+			return batch.sendSequentially(conversation);
+		}
+	}
+	
+	/**
+	 * Ask for a camera snapshot as part of an established Conversation, and receive it chunk by chunk
+	 * 
+	 * @param listener
+	 * @param conversation
+	 * @return The whole JPEG
+	 * @throws ConversationExpiredException
+	 */
+	byte[] requestSnapshot(SnapshotListener listener, AESSecuredConversation conversation) throws ConversationExpiredException, SecurityException, IOException {
+		String header = sendMessage("SNAPSHOT", conversation);
+		if ( !header.startsWith(SNAPSHOT_HEADER) ) {
+			throw new IOException("The garage has no camera: " + header);
+		}
+		
+		String[] sizes = header.substring(SNAPSHOT_HEADER.length()).split(" ");
+		int imageLength;
+		int chunkSize;
+		try {
+			imageLength = Integer.parseInt(sizes[0]);
+			chunkSize = Integer.parseInt(sizes[1]);
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Bad snapshot header: " + header);
+		}
+		if ( imageLength <= 0 || imageLength > MAX_SNAPSHOT_SIZE || chunkSize <= 0 ) {
+			throw new IOException("Bad snapshot header: " + header);
+		}
+		
+		long transferStartTime = LatencyTracer.now();
+		byte[] image = new byte[imageLength];
+		int receivedLength = 0;
+		for ( int chunkNumber = 0; receivedLength < imageLength; chunkNumber++ ) {
+			ByteBuffer chunk = ByteBuffer.wrap(receiveFrame()).order(ByteOrder.LITTLE_ENDIAN);
+			
+			int expectedLength = Math.min(chunkSize, imageLength - receivedLength);
+			if ( chunk.remaining() != CHUNK_NUMBER_SIZE + expectedLength || (chunk.getShort() & 0xFFFF) != chunkNumber ) {
+				throw new IOException("Snapshot chunk " + chunkNumber + " is missing");
+			}
+			
+			chunk.get(image, receivedLength, expectedLength);
+			receivedLength += expectedLength;
+			
+			listener.snapshotReceived(image, receivedLength, imageLength);
+		}
+		DoorHistory.record(HistoryEvent.SNAPSHOT, getDoorNumber(), (LatencyTracer.now() - transferStartTime) / 1000000);
+		
+		return image;
+	}
+	
 	/**
 	 * Encrypts the plain text, sends it over the <code>CommunicationChannel</code>, waits to receive
 	 * encrypted response, decrypts and returns the plain text payload.
 	 * <p>
-	 * The format of the outgoing message is as follows:
-	 * <pre>
-	 *   [Message_Length[2], IV_Send[16], AES_CBC(Master_Key, IV_Send, payloadToSend), <==== HMAC(Master_Key)]
-	 * </pre>
-	 * <p>
-	 * The format of received messages is:
-	 * <pre>
-	 *   [Message_Length[2], IV_Response[16], AES_CBC(Master_Key, IV_Response, responsePayload), <==== HMAC(Master_Key)]
-	 * </pre>
-	 * 
+	 * Both the outgoing and the received messages are frames in the format described in <code>AESFrameCodec</code>.
 	 * 
 	 * @param payloadToSend
 	 * @return
@@ -105,131 +409,33 @@ public class AESChannelClient extends AbstractSecureChannelClient {
 	private byte[] encryptSendAndWaitForResponse(byte[] payloadToSend) throws SecurityException, IOException {
 		// Encrypt
 		//
-		byte[] cipherText = encryptData(payloadToSend);
+		byte[] cipherText = codec.encode(payloadToSend);
 		
 		// Send cipher text
 		//
 		commChannel.write(cipherText);
 		
+		return receiveFrame();
+	}
+	
+	/**
+	 * Waits for the next frame from the server
+	 * 
+	 * @return Its decrypted payload
+	 */
+	private byte[] receiveFrame() throws SecurityException, IOException {
 		// The first 2 bytes of the response are the message length, so we read those first, and then get the rest
 		// once we know the full length.
 		//
-		ByteBuffer msgLengthBuffer = ByteBuffer.wrap( commChannel.read(2) ).order(ByteOrder.LITTLE_ENDIAN);
-		short responseLength = msgLengthBuffer.asShortBuffer().get(0);
-		ByteBuffer restOfResponseBuffer = ByteBuffer.wrap( commChannel.read(responseLength - 2) );
-		ByteBuffer fullResponseBuffer = ByteBuffer.allocate(responseLength);
+		byte[] lengthPrefix = commChannel.read(AESFrameCodec.LENGTH_PREFIX_SIZE);
+		int responseLength = AESFrameCodec.readFrameLength(lengthPrefix);
+		byte[] restOfResponse = commChannel.read(responseLength - AESFrameCodec.LENGTH_PREFIX_SIZE);
 		
 		// Decrypt
 		//
-		byte[] encryptedData = fullResponseBuffer.put(msgLengthBuffer.array()).put(restOfResponseBuffer.array()).array();
-		byte[] decryptedData = decryptData(encryptedData);
+		byte[] encryptedData = ByteBuffer.allocate(responseLength).put(lengthPrefix).put(restOfResponse).array();
+		byte[] decryptedData = codec.decode(encryptedData);
 		
 		return decryptedData;
 	}
-	
-	/**
-	 * @param encryptedData
-	 * @return Plain text verified with HMAC and decrypted with AES 
-	 */
-	private byte[] decryptData(byte[] encryptedData) throws SecurityException {
-		try {
-			int dataLength = encryptedData.length;
-			
-			ByteBuffer dataBuffer = ByteBuffer.wrap(encryptedData);
-			
-			// Verify that locally computed HMAC matches the received one
-			//
-			byte[] hmacDataToVerify = new byte[dataLength - 20];
-			byte[] receivedHmac = new byte[20];
-			dataBuffer.get(hmacDataToVerify);
-			dataBuffer.get(receivedHmac);
-			
-	        Mac mac = Mac.getInstance("HmacSHA1");
-            mac.init(MasterKey.getMasterKey());
-
-            byte[] localHmac = mac.doFinal(hmacDataToVerify);
-            
-            if ( !Arrays.equals(receivedHmac, localHmac) ) {
-            	throw new SecurityException();
-            }
-			
-            // Grab the IV that was used to encrypt this data
-        	//
-            byte[] iv = new byte[16];
-            dataBuffer.position(2); dataBuffer.get(iv);
-            IvParameterSpec ivSpec = new IvParameterSpec(iv);
-            
-        	// Decrypt the message
-        	//
-            int cipherTextLength = hmacDataToVerify.length - dataBuffer.position();
-            byte[] cipherText = new byte[cipherTextLength];
-            dataBuffer.get(cipherText);
-            
-			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
-	        cipher.init(Cipher.DECRYPT_MODE, MasterKey.getMasterKey(), ivSpec);
-	        byte[] plainText = cipher.doFinal(cipherText);
-	        
-			return plainText;
-			
-		} catch (GeneralSecurityException e) {
-			throw new IllegalStateException("AES or HMAC algorithm problem detected", e);
-		}
-	}
-	
-	/**
-	 * @param plainText
-	 * @return AES-128 CBC encrypted, PKCS7 padded cipher text 
-	 */
-	private byte[] encryptData(byte[] plainText) {
-		try {
-			ByteBuffer sendData = ByteBuffer.allocate(180).order(ByteOrder.LITTLE_ENDIAN);
-			sendData.position(2); // Leave room for data length prefix
-			
-			// Generate IV_Send[16]
-			//
-			IvParameterSpec sendIV = generateSendIV();
-			sendData.put(sendIV.getIV());
-
-			// Encrypt command
-			//
-			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
-	        cipher.init(Cipher.ENCRYPT_MODE, MasterKey.getMasterKey(), sendIV);
-	        byte[] encrypted = cipher.doFinal(plainText);
-	        sendData.put(encrypted);
-	        
-	        // Calculate total length
-	        //
-	        short dataLength = (short) (2 + sendIV.getIV().length + encrypted.length + 20); // HMAC is 20 bytes
-	        sendData.putShort(0, dataLength);
-	        
-	        Mac mac = Mac.getInstance("HmacSHA1");
-            mac.init(MasterKey.getMasterKey());
-
-            // Compute the HMAC
-            //
-            byte[] everythingSoFar = new byte[sendData.position()]; 
-            sendData.rewind(); sendData.get(everythingSoFar);
-            byte[] rawHmac = mac.doFinal(everythingSoFar);
-            sendData.put(rawHmac);
-	        
-            // Data transmission is ready
-            //
-            byte[] result = new byte[sendData.position()];
-            sendData.rewind(); sendData.get(result);
-            
-    		return result;
-	        
-		} catch (GeneralSecurityException e) {
-			throw new IllegalStateException("AES or HMAC algorithm problem detected", e);
-		}
-		
-	}
-	
-	private IvParameterSpec generateSendIV() {
-		byte[] iv = new byte[16];
-		random.nextBytes(iv);
-		
-//		return new IvParameterSpec(new byte[] {1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1});
-		return new IvParameterSpec(iv);
-	}	
 }
@@ -0,0 +1,219 @@
+package vace117.garage.opener.secure.channel.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import vace117.garage.opener.secure.channel.SecurityException;
+
+/**
+ * Encodes and decodes the encrypted frames exchanged with the Spark Core, under a given key.
+ * <p>
+ * The format of a frame is as follows:
+ * <pre>
+ *   [Message_Length[2], IV[16], AES_CBC(Key, IV, payload), <==== HMAC(Key)]
+ * </pre>
+ * Message_Length is little endian and includes itself and the HMAC, so a frame can be at most <code>MAX_FRAME_SIZE</code>
+ * bytes long. Commands sent to the Spark Core are much smaller than that, but camera snapshots come in frames of a few KB.
+ * <p>
+ * The <code>Cipher</code> and <code>Mac</code> come from the key's <code>KeyContext</code>, so they are not looked up
+ * or keyed again for every frame.
+ *
+ * @author Val Blant
+ */
+public class AESFrameCodec {
+
+	public static final int LENGTH_PREFIX_SIZE = 2;
+	private static final int IV_SIZE = 16;
+	private static final int HMAC_SIZE = 20;
+	private static final int BLOCK_SIZE = 16;
+	
+	/**
+	 * The most that Message_Length can describe
+	 */
+	public static final int MAX_FRAME_SIZE = 0xFFFF;
+	
+	/**
+	 * The largest plain text that still fits into one frame, once it's padded and wrapped
+	 */
+	public static final int MAX_PLAIN_TEXT_SIZE = 
+			(MAX_FRAME_SIZE - LENGTH_PREFIX_SIZE - IV_SIZE - HMAC_SIZE) / BLOCK_SIZE * BLOCK_SIZE - 1;
+
+	private final KeyContext keys;
+
+
+	/**
+	 * @return A codec for talking to the real Spark Core
+	 */
+	public static AESFrameCodec forMasterKey() {
+		return new AESFrameCodec(MasterKey.getContext());
+	}
+
+	/**
+	 * For keys that are not in the <code>KeyRegistry</code>, e.g. a test key
+	 */
+	public AESFrameCodec(SecretKey key) {
+		this(new KeyContext("unregistered", key));
+	}
+
+	public AESFrameCodec(KeyContext keys) {
+		this.keys = keys;
+	}
+
+	/**
+	 * @return The key that frames are encoded under
+	 */
+	public KeyContext getKeys() {
+		return keys;
+	}
+
+	/**
+	 * @param lengthPrefix The first <code>LENGTH_PREFIX_SIZE</code> bytes of a frame
+	 * @return Length of the whole frame
+	 */
+	public static int readFrameLength(byte[] lengthPrefix) {
+		return ByteBuffer.wrap(lengthPrefix, 0, LENGTH_PREFIX_SIZE).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
+	}
+
+	/**
+	 * @param frame
+	 * @return Plain text verified with HMAC and decrypted with AES
+	 */
+	public byte[] decode(byte[] frame) throws SecurityException {
+		try {
+			int dataLength = frame.length;
+
+			ByteBuffer dataBuffer = ByteBuffer.wrap(frame);
+
+			// Verify that locally computed HMAC matches the received one
+			//
+			byte[] hmacDataToVerify = new byte[dataLength - HMAC_SIZE];
+			byte[] receivedHmac = new byte[HMAC_SIZE];
+			dataBuffer.get(hmacDataToVerify);
+			dataBuffer.get(receivedHmac);
+
+	        Mac mac = keys.borrowMac();
+	        byte[] localHmac;
+	        try {
+	        	localHmac = mac.doFinal(hmacDataToVerify);
+	        }
+	        finally {
+	        	keys.releaseMac(mac);
+	        }
+
+            if ( !Arrays.equals(receivedHmac, localHmac) ) {
+            	throw new SecurityException();
+            }
+
+            // Grab the IV that was used to encrypt this data
+        	//
+            byte[] iv = new byte[IV_SIZE];
+            dataBuffer.position(LENGTH_PREFIX_SIZE); dataBuffer.get(iv);
+            IvParameterSpec ivSpec = new IvParameterSpec(iv);
+
+        	// Decrypt the message
+        	//
+            int cipherTextLength = hmacDataToVerify.length - dataBuffer.position();
+            byte[] cipherText = new byte[cipherTextLength];
+            dataBuffer.get(cipherText);
+
+			Cipher cipher = keys.borrowCipher();
+			byte[] plainText;
+			try {
+		        cipher.init(Cipher.DECRYPT_MODE, keys.getKey(), ivSpec);
+		        plainText = cipher.doFinal(cipherText);
+			}
+			finally {
+				keys.releaseCipher(cipher);
+			}
+
+			return plainText;
+
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES or HMAC algorithm problem detected", e);
+		}
+	}
+
+	/**
+	 * @param plainText At most <code>MAX_PLAIN_TEXT_SIZE</code> bytes
+	 * @return A complete frame with AES-128 CBC encrypted, PKCS7 padded cipher text
+	 */
+	public byte[] encode(byte[] plainText) {
+		if ( plainText.length > MAX_PLAIN_TEXT_SIZE ) {
+			throw new IllegalArgumentException(plainText.length + " bytes don't fit into one frame");
+		}
+		
+		try {
+			// Padding always adds between 1 and BLOCK_SIZE bytes
+			//
+			int cipherTextLength = (plainText.length / BLOCK_SIZE + 1) * BLOCK_SIZE;
+			ByteBuffer sendData = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + IV_SIZE + cipherTextLength + HMAC_SIZE)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			sendData.position(LENGTH_PREFIX_SIZE); // Leave room for data length prefix
+
+			// Generate IV_Send[16]
+			//
+			IvParameterSpec sendIV = generateIV();
+			sendData.put(sendIV.getIV());
+
+			// Encrypt command
+			//
+			Cipher cipher = keys.borrowCipher();
+			byte[] encrypted;
+			try {
+		        cipher.init(Cipher.ENCRYPT_MODE, keys.getKey(), sendIV);
+		        encrypted = cipher.doFinal(plainText);
+			}
+			finally {
+				keys.releaseCipher(cipher);
+			}
+	        sendData.put(encrypted);
+
+	        // Calculate total length
+	        //
+	        short dataLength = (short) (LENGTH_PREFIX_SIZE + sendIV.getIV().length + encrypted.length + HMAC_SIZE);
+	        sendData.putShort(0, dataLength);
+
+            // Compute the HMAC
+            //
+            byte[] everythingSoFar = new byte[sendData.position()];
+            sendData.rewind(); sendData.get(everythingSoFar);
+	        Mac mac = keys.borrowMac();
+	        byte[] rawHmac;
+	        try {
+	        	rawHmac = mac.doFinal(everythingSoFar);
+	        }
+	        finally {
+	        	keys.releaseMac(mac);
+	        }
+            sendData.put(rawHmac);
+
+            // Data transmission is ready
+            //
+            byte[] result = new byte[sendData.position()];
+            sendData.rewind(); sendData.get(result);
+
+    		return result;
+
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES or HMAC algorithm problem detected", e);
+		}
+
+	}
+
+	/**
+	 * The PRNG fixes are applied when the entropy source is first needed
+	 */
+	private IvParameterSpec generateIV() {
+		byte[] iv = new byte[IV_SIZE];
+		BufferedEntropySource.getInstance().nextBytes(iv);
+
+		return new IvParameterSpec(iv);
+	}
+}
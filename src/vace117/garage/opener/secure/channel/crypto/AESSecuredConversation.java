@@ -2,13 +2,18 @@ package vace117.garage.opener.secure.channel.crypto;
 
 import java.io.IOException;
 
+import vace117.garage.opener.secure.channel.BatchResponse;
+import vace117.garage.opener.secure.channel.CommandBatch;
 import vace117.garage.opener.secure.channel.Conversation;
 import vace117.garage.opener.secure.channel.ConversationExpiredException;
 import vace117.garage.opener.secure.channel.SecurityException;
+import vace117.garage.opener.secure.channel.SnapshotListener;
 
 /**
  * Asking for an instance executes conversation establishment handshake by negotiating a <code>ConversationToken</code> with the server
  * and provides the sendMessage() method to send and receive data from the server.
+ * <p>
+ * A 0-RTT conversation starts out without a token, and gets one with the response to its first message.
  *
  * @author Val Blant
  */
@@ -18,13 +23,35 @@ public class AESSecuredConversation implements Conversation {
 	private ConversationToken token;
 	
 	
+	/**
+	 * @param token <code>null</code> for a 0-RTT conversation
+	 */
 	AESSecuredConversation(AESChannelClient scc, ConversationToken token) {
 		this.scc = scc;
 		this.token = token;
 	}
 
 	public String sendMessage(String message) throws ConversationExpiredException, SecurityException, IOException {
-		return scc.sendMessage(message, token);
+		return scc.sendMessage(message, this);
+	}
+
+	public BatchResponse sendBatch(CommandBatch batch) throws ConversationExpiredException, SecurityException, IOException {
+		return scc.sendBatch(batch, this);
+	}
+
+	public byte[] requestSnapshot(SnapshotListener listener) throws ConversationExpiredException, SecurityException, IOException {
+		return scc.requestSnapshot(listener, this);
+	}
+
+	/**
+	 * @return <code>null</code> until the first message of a 0-RTT conversation is answered
+	 */
+	ConversationToken getToken() {
+		return token;
+	}
+
+	void setToken(ConversationToken token) {
+		this.token = token;
 	}
 
 }
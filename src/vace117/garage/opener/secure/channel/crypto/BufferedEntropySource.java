@@ -0,0 +1,95 @@
+package vace117.garage.opener.secure.channel.crypto;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Process-wide source of random bytes for small, frequent requests, like IVs.
+ * <p>
+ * Going to the PRNG for every 16 byte IV means a trip into <code>/dev/urandom</code> under a global lock
+ * (see <code>PRNGFixes.LinuxPRNGSecureRandom</code>). Instead, small requests are served from a block of random bytes
+ * that is refilled from the PRNG when it runs out. The block is striped, so threads mostly don't contend with each other.
+ * <p>
+ * Security guarantees are the same as reading the PRNG directly:
+ * <ul>
+ * 	<li>Every byte comes from a <code>SecureRandom</code> created after <code>PRNGFixes.apply()</code>.</li>
+ * 	<li>Every byte is handed out exactly once. Stripes never share a block.</li>
+ * 	<li>Bytes are wiped from the block as soon as they are handed out, so earlier output can't be recovered from memory.</li>
+ * </ul>
+ * The only difference is that up to <code>BLOCK_SIZE</code> bytes of future output per stripe are held in memory
+ * ahead of time, which is the same trade-off as putting a <code>BufferedInputStream</code> in front of <code>/dev/urandom</code>.
+ *
+ * @author Val Blant
+ */
+public class BufferedEntropySource {
+
+	private static final int STRIPES = 4;
+	private static final int BLOCK_SIZE = 512;
+
+	/**
+	 * Anything bigger than this goes straight to the PRNG
+	 */
+	private static final int MAX_BUFFERED_REQUEST = 64;
+
+	private static BufferedEntropySource instance;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+
+	private static class Stripe {
+		private final SecureRandom random;
+		private final byte[] block = new byte[BLOCK_SIZE];
+		private int position = BLOCK_SIZE; // Empty
+
+		Stripe(SecureRandom random) {
+			this.random = random;
+		}
+
+		synchronized void nextBytes(byte[] bytes) {
+			if ( BLOCK_SIZE - position < bytes.length ) {
+				random.nextBytes(block);
+				position = 0;
+			}
+
+			System.arraycopy(block, position, bytes, 0, bytes.length);
+			Arrays.fill(block, position, position + bytes.length, (byte) 0);
+			position += bytes.length;
+		}
+	}
+
+
+	/**
+	 * @return The shared instance. On Android, the PRNG fixes are applied before it is created.
+	 */
+	public static synchronized BufferedEntropySource getInstance() {
+		if ( instance == null ) {
+			if ( isAndroid() ) PRNGFixes.apply(); // A plain JVM, e.g. in a replay, doesn't need them
+			instance = new BufferedEntropySource();
+		}
+		return instance;
+	}
+
+	private static boolean isAndroid() {
+		return "Dalvik".equals(System.getProperty("java.vm.name"));
+	}
+
+	private BufferedEntropySource() {
+		for ( int i = 0; i < STRIPES; i++ ) {
+			stripes[i] = new Stripe(new SecureRandom());
+		}
+	}
+
+	/**
+	 * Fills the array with random bytes
+	 */
+	public void nextBytes(byte[] bytes) {
+		Stripe stripe = stripes[(int) (Thread.currentThread().getId() % STRIPES)];
+
+		if ( bytes.length > MAX_BUFFERED_REQUEST ) {
+			stripe.random.nextBytes(bytes);
+		}
+		else {
+			stripe.nextBytes(bytes);
+		}
+	}
+}
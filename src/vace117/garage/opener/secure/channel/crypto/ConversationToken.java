@@ -1,6 +1,7 @@
 package vace117.garage.opener.secure.channel.crypto;
 
-import java.security.GeneralSecurityException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import javax.crypto.Mac;
 
@@ -12,23 +13,41 @@ import javax.crypto.Mac;
  * 
  * This conversationToken will be sent with every message in the conversation. The same calculation is done on the 
  * server to verify that the message is authentic.
+ * 
+ * A 0-RTT conversation has no challenge from the server. Its token is calculated from the client's own nonce and counter
+ * instead, which the server finds in the first message:
+ * 		<pre>conversationToken = HMAC(Key, Nonce[16], Counter[8])</pre>
  *
  * @author Val Blant
  */
 public class ConversationToken {
+	/**
+	 * Every token is an HMAC-SHA1, so this many bytes long
+	 */
+	public static final int LENGTH = 20;
+	
 	private byte[] conversationToken;
 
 	public ConversationToken(byte[] challengeNonce) {
+		this(challengeNonce, MasterKey.getContext());
+	}
+	
+	public ConversationToken(byte[] challengeNonce, KeyContext keys) {
+		Mac mac = keys.borrowMac();
 		try {
-			Mac mac = Mac.getInstance("HmacSHA1");
-	        mac.init(MasterKey.getMasterKey());
-	        
 			this.conversationToken = mac.doFinal(challengeNonce);
-			
-		} catch (GeneralSecurityException e) {
-			throw new IllegalStateException("Unable to compute conversationToken, b/c HMAC algorithm failed.", e);
 		}
+		finally {
+			keys.releaseMac(mac);
+		}
+	}
 
+	/**
+	 * @return Token for a 0-RTT conversation
+	 */
+	public static ConversationToken forZeroRoundTrip(byte[] clientNonce, long counter, KeyContext keys) {
+		return new ConversationToken(ByteBuffer.allocate(clientNonce.length + 8).order(ByteOrder.LITTLE_ENDIAN)
+				.put(clientNonce).putLong(counter).array(), keys);
 	}
 
 	public byte[] getBytes() {
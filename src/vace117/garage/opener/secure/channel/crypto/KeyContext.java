@@ -0,0 +1,126 @@
+package vace117.garage.opener.secure.channel.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * One AES key, together with ready-to-use crypto objects for it.
+ * <p>
+ * Looking up a <code>Cipher</code> or a <code>Mac</code> goes through the provider list, and initializing a
+ * <code>Mac</code> with a key runs the HMAC key setup. Neither depends on the message, so they are done once
+ * per key and the objects are reused. They aren't thread safe, so each one is borrowed from a small pool for the
+ * duration of one frame and handed back afterwards. The pool grows to the number of threads that use the key at once.
+ *
+ * @author Val Blant
+ */
+public class KeyContext {
+
+	/**
+	 * Android calls it PKCS7, while a plain JVM (e.g. in a replay) only knows the same padding as PKCS5
+	 */
+	private static final String CIPHER_TRANSFORMATION = findCipherTransformation();
+
+	private final String id;
+	private final SecretKey key;
+
+	private final ConcurrentLinkedQueue<Mac> macs = new ConcurrentLinkedQueue<Mac>();
+	private final ConcurrentLinkedQueue<Cipher> ciphers = new ConcurrentLinkedQueue<Cipher>();
+
+	private long lastZeroRoundTripCounter = 0;
+
+
+	/**
+	 * @param id Name of the key, for error messages
+	 */
+	public KeyContext(String id, SecretKey key) {
+		this.id = id;
+		this.key = key;
+	}
+
+	public KeyContext(String id, byte[] key) {
+		this(id, new SecretKeySpec(key, "AES"));
+	}
+
+	/**
+	 * Creates the first <code>Mac</code> and <code>Cipher</code> ahead of time, so the first frame doesn't have to
+	 */
+	void warmUp() {
+		releaseMac(borrowMac());
+		releaseCipher(borrowCipher());
+	}
+
+	/**
+	 * The server only accepts a 0-RTT conversation with a higher counter than the last one under the same key, and
+	 * close to its own clock. The wall clock satisfies both, as long as no two conversations start in the same ms.
+	 *
+	 * @return A counter for the next 0-RTT conversation under this key, which is never the same twice
+	 */
+	synchronized long nextZeroRoundTripCounter() {
+		lastZeroRoundTripCounter = Math.max(lastZeroRoundTripCounter + 1, System.currentTimeMillis());
+		return lastZeroRoundTripCounter;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public SecretKey getKey() {
+		return key;
+	}
+
+	/**
+	 * @return HMAC-SHA1 initialized with this key. Must be given back with <code>releaseMac()</code>.
+	 */
+	Mac borrowMac() {
+		Mac mac = macs.poll();
+		if ( mac != null ) return mac;
+
+		try {
+			mac = Mac.getInstance("HmacSHA1");
+			mac.init(key);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HMAC algorithm problem detected for key " + id, e);
+		}
+	}
+
+	/**
+	 * @param mac Must be in its initial state, i.e. after <code>doFinal()</code>
+	 */
+	void releaseMac(Mac mac) {
+		macs.offer(mac);
+	}
+
+	/**
+	 * @return AES/CBC cipher. It has to be initialized with this key and a new IV for every frame.
+	 *         Must be given back with <code>releaseCipher()</code>.
+	 */
+	Cipher borrowCipher() {
+		Cipher cipher = ciphers.poll();
+		if ( cipher != null ) return cipher;
+
+		try {
+			return Cipher.getInstance(CIPHER_TRANSFORMATION);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES algorithm problem detected", e);
+		}
+	}
+
+	void releaseCipher(Cipher cipher) {
+		ciphers.offer(cipher);
+	}
+
+	private static String findCipherTransformation() {
+		try {
+			Cipher.getInstance("AES/CBC/PKCS7Padding");
+			return "AES/CBC/PKCS7Padding";
+		} catch (GeneralSecurityException e) {
+			return "AES/CBC/PKCS5Padding";
+		}
+	}
+}
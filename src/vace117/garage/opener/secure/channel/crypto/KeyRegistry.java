@@ -0,0 +1,114 @@
+package vace117.garage.opener.secure.channel.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import vace117.garage.opener.GarageControlActivity;
+
+/**
+ * All of the AES keys the app uses, one per Spark Core and key version, each with its <code>KeyContext</code>.
+ * <p>
+ * A key is a 16 byte asset. Version 1 of key <code>name</code> is <code>name.key</code>, later versions are
+ * <code>name.v2.key</code>, <code>name.v3.key</code> and so on, so a key can be rotated by adding an asset.
+ * <p>
+ * Keys are read on a background thread the first time they are asked for, and kept for the life of the process.
+ * <code>prefetch()</code> starts that early, e.g. from <code>StartupWarmup</code>, so that by the time a door is picked
+ * its key is ready and switching between doors costs no key setup at all.
+ *
+ * @author Val Blant
+ */
+public class KeyRegistry {
+
+	public static final String MASTER_KEY_ID = keyId("master", 1);
+
+	private static final int KEY_SIZE = 16;
+
+	private static final KeyRegistry instance = new KeyRegistry();
+
+	private final ConcurrentHashMap<String, Future<KeyContext>> keys = new ConcurrentHashMap<String, Future<KeyContext>>();
+
+	private final ExecutorService loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Key Loader");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+
+	public static KeyRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return Id of the given version of a key, which is also the name of its asset
+	 */
+	public static String keyId(String name, int version) {
+		return version <= 1 ? name + ".key" : name + ".v" + version + ".key";
+	}
+
+	/**
+	 * Starts loading the key in the background, if it isn't loaded or loading already
+	 */
+	public Future<KeyContext> prefetch(final String keyId) {
+		Future<KeyContext> key = keys.get(keyId);
+		if ( key != null ) return key;
+
+		FutureTask<KeyContext> load = new FutureTask<KeyContext>(new Callable<KeyContext>() {
+			public KeyContext call() throws IOException {
+				return load(keyId);
+			}
+		});
+
+		key = keys.putIfAbsent(keyId, load);
+		if ( key != null ) return key; // Someone else got there first
+
+		loader.execute(load);
+		return load;
+	}
+
+	/**
+	 * @return The key, waiting for it to load if it hasn't yet
+	 * @throws IllegalStateException if the key can't be read. The next call tries again.
+	 */
+	public KeyContext get(String keyId) {
+		Future<KeyContext> key = prefetch(keyId);
+		try {
+			return key.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading key " + keyId, e);
+		} catch (ExecutionException e) {
+			keys.remove(keyId, key);
+			throw new IllegalStateException("Couldn't read key " + keyId, e.getCause());
+		}
+	}
+
+	private KeyContext load(String keyId) throws IOException {
+		byte[] key = new byte[KEY_SIZE];
+		InputStream input = GarageControlActivity.getAssetManager().open(keyId);
+		try {
+			int length = 0;
+			while ( length < KEY_SIZE ) {
+				int count = input.read(key, length, KEY_SIZE - length);
+				if ( count < 0 ) throw new IOException(keyId + " is shorter than " + KEY_SIZE + " bytes");
+				length += count;
+			}
+		}
+		finally {
+			input.close();
+		}
+
+		KeyContext context = new KeyContext(keyId, key);
+		context.warmUp();
+		return context;
+	}
+}
@@ -1,37 +1,29 @@
 package vace117.garage.opener.secure.channel.crypto;
 
-import java.io.IOException;
-import java.io.InputStream;
-
 import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-
-import vace117.garage.opener.GarageControlActivity;
 
+/**
+ * The key of the original door, kept in the <code>master.key</code> asset. It lives in the <code>KeyRegistry</code>
+ * like every other key.
+ *
+ * @author Val Blant
+ */
 public class MasterKey {
-	
-	final static byte MASTER_KEY[] = new byte[16];
-	static {
-		InputStream input = null;
-		try {
-			input = GarageControlActivity.getAssetManager().open("master.key");
-			input.read(MASTER_KEY, 0, 16);
 
-		} catch (Exception e) {
-			throw new IllegalStateException("Couldn't read the Master Key file", e);
-		}
-		finally {
-			try {
-				if ( input != null) input.close();
-			} catch (IOException e) {
-				throw new IllegalStateException("Couldn't read the Master Key file", e);
-			}
-		}
+	/**
+	 * Reads the Master Key file now, if it hasn't been read yet. Lets the file I/O happen before the key is first needed.
+	 */
+	public static void load() {
+		getContext();
 	}
-	
-	static SecretKey getMasterKey() {
-		return new SecretKeySpec(MASTER_KEY, "AES");
+
+	public static SecretKey getMasterKey() {
+		return getContext().getKey();
 //		return new SecretKeySpec(new byte[] {0,0,0,0,0,0,0,0,0,0,0,0,0,0,1,1}, "AES");
 	}
 
+	static KeyContext getContext() {
+		return KeyRegistry.getInstance().get(KeyRegistry.MASTER_KEY_ID);
+	}
+
 }
@@ -43,17 +43,31 @@ public final class PRNGFixes {
     private static final byte[] BUILD_FINGERPRINT_AND_DEVICE_SERIAL =
         getBuildFingerprintAndDeviceSerial();
 
+    /**
+     * Whether the fixes have been applied in this process.
+     *
+     * @GuardedBy("PRNGFixes.class")
+     */
+    private static boolean sApplied;
+
     /** Hidden constructor to prevent instantiation. */
     private PRNGFixes() {}
 
     /**
-     * Applies all fixes.
+     * Applies all fixes. Only the first successful call does any work, so
+     * this is cheap to call from every place that needs the fixes in place.
      *
      * @throws SecurityException if a fix is needed but could not be applied.
      */
-    public static void apply() {
+    public static synchronized void apply() {
+        if (sApplied) {
+            return;
+        }
+
         applyOpenSSLFix();
         installLinuxPRNGSecureRandom();
+
+        sApplied = true;
     }
 
     /**
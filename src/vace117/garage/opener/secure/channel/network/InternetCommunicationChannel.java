@@ -5,9 +5,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Arrays;
 
 import vace117.garage.opener.secure.channel.CommunicationChannel;
+import vace117.garage.opener.secure.channel.crypto.AESFrameCodec;
 
 /**
  * Communicates with Spark over the Internet via a Socket.
@@ -16,10 +16,12 @@ import vace117.garage.opener.secure.channel.CommunicationChannel;
  */
 public class InternetCommunicationChannel implements CommunicationChannel {
 	
-	private static final int MAX_MESSAGE_SIZE = 256; 
-	private byte[] data_buffer = new byte[MAX_MESSAGE_SIZE];
+	/**
+	 * The largest frame, which is a camera snapshot chunk. Commands and their responses are much smaller.
+	 */
+	private static final int MAX_MESSAGE_SIZE = AESFrameCodec.MAX_FRAME_SIZE; 
 
-	private Socket socket;
+	private volatile Socket socket; // Volatile, so close() from another thread can abort a connect()
 	private OutputStream outToServer;
 	private InputStream inFromServer;
 	
@@ -31,6 +33,9 @@ public class InternetCommunicationChannel implements CommunicationChannel {
 	
 	
 
+	/**
+	 * @param sparkCore May be unresolved, in which case the host name is resolved when the channel is opened
+	 */
 	public InternetCommunicationChannel(InetSocketAddress sparkCore) {
 		this.sparkCore = sparkCore;
 	}
@@ -38,7 +43,18 @@ public class InternetCommunicationChannel implements CommunicationChannel {
 	@Override
 	public void open() throws IOException {
 		if ( !isOpen ) {
-			socket = new Socket();
+			if ( sparkCore.isUnresolved() ) {
+				// Resolve here rather than in the caller's thread. Once resolved, the address is kept for next time.
+				//
+				InetSocketAddress resolved = new InetSocketAddress(sparkCore.getHostName(), sparkCore.getPort());
+				if ( resolved.isUnresolved() ) {
+					throw new IOException("Unable to resolve " + sparkCore.getHostName());
+				}
+				sparkCore = resolved;
+			}
+			
+			Socket socket = new Socket();
+			this.socket = socket;
 			socket.setSoTimeout(READ_TIMEOUT);
 			socket.connect(sparkCore, CONNECT_TIMEOUT);
 			
@@ -58,14 +74,32 @@ public class InternetCommunicationChannel implements CommunicationChannel {
 			
 			isOpen = false;
 		}
+		else if ( socket != null ) {
+			socket.close(); // Aborts a connect() in progress on another thread
+		}
 	}
 
+	/**
+	 * Waits until all of the bytes have arrived. Big frames come in over several TCP segments.
+	 */
 	@Override
 	public byte[] read(int numberOfBytes) throws IOException {
+		if ( numberOfBytes > MAX_MESSAGE_SIZE ) {
+			throw new IOException("Refusing to read " + numberOfBytes + " bytes");
+		}
+		
 		if ( socket.isConnected() && !socket.isInputShutdown() && !socket.isOutputShutdown() ) {
-			inFromServer.read(data_buffer, 0, numberOfBytes);
+			byte[] data = new byte[numberOfBytes];
+			int received = 0;
+			while ( received < numberOfBytes ) {
+				int count = inFromServer.read(data, received, numberOfBytes - received);
+				if ( count < 0 ) {
+					throw new IOException("Lost connection to the garage!");
+				}
+				received += count;
+			}
 			
-			return Arrays.copyOfRange(data_buffer, 0, numberOfBytes);
+			return data;
 		}
 		else {
 			throw new IOException("Lost connection to the garage!");
@@ -0,0 +1,95 @@
+package vace117.garage.opener.secure.channel.replay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import vace117.garage.opener.secure.channel.CommunicationChannel;
+import vace117.garage.opener.secure.channel.SecurityException;
+import vace117.garage.opener.secure.channel.crypto.AESFrameCodec;
+import vace117.garage.opener.secure.channel.replay.SessionLog.EventType;
+
+/**
+ * Passes everything through to another <code>CommunicationChannel</code>, and records the session in a <code>SessionLog</code>.
+ * <p>
+ * Frames are decrypted before they are logged, so the log can later be replayed under a test key by
+ * <code>ReplayCommunicationChannel</code>. Frames that fail to decrypt are not logged.
+ *
+ * @author Val Blant
+ */
+public class RecordingCommunicationChannel implements CommunicationChannel {
+
+	private final CommunicationChannel channel;
+	private final AESFrameCodec codec;
+	private final SessionLog.Writer log;
+
+	private long lastEventTime = System.nanoTime();
+	private long lastSentTime;
+
+	/**
+	 * Response bytes read so far, until there is a whole frame
+	 */
+	private ByteArrayOutputStream responseFrame = new ByteArrayOutputStream();
+
+
+	/**
+	 * @param channel The real channel
+	 * @param codec Decrypts the frames going through the channel
+	 * @param log Where to record the session
+	 */
+	public RecordingCommunicationChannel(CommunicationChannel channel, AESFrameCodec codec, SessionLog.Writer log) {
+		this.channel = channel;
+		this.codec = codec;
+		this.log = log;
+	}
+
+	@Override
+	public void open() throws IOException {
+		long startTime = System.nanoTime();
+		channel.open();
+		record(EventType.OPEN, System.nanoTime() - startTime, null);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		record(EventType.CLOSE, System.nanoTime() - lastEventTime, null);
+		log.flush();
+	}
+
+	@Override
+	public byte[] read(int numberOfBytes) throws IOException {
+		byte[] bytes = channel.read(numberOfBytes);
+
+		responseFrame.write(bytes);
+		byte[] frame = responseFrame.toByteArray();
+		if ( frame.length >= AESFrameCodec.LENGTH_PREFIX_SIZE && frame.length >= AESFrameCodec.readFrameLength(frame) ) {
+			responseFrame.reset();
+			try {
+				record(EventType.RECEIVED, System.nanoTime() - lastSentTime, codec.decode(frame));
+			} catch (SecurityException e) {
+				// Not ours to report. The client will find out when it decodes the same frame.
+			}
+		}
+
+		return bytes;
+	}
+
+	@Override
+	public void write(byte[] bytes) throws IOException {
+		long now = System.nanoTime();
+		try {
+			record(EventType.SENT, now - lastEventTime, codec.decode(bytes));
+		} catch (SecurityException e) {
+			// Can't happen to frames we encrypted ourselves, unless the codec uses the wrong key
+		}
+
+		responseFrame.reset();
+		lastSentTime = System.nanoTime();
+		channel.write(bytes);
+	}
+
+	private void record(EventType type, long delayNanos, byte[] payload) throws IOException {
+		log.write(type, delayNanos / 1000, payload);
+		lastEventTime = System.nanoTime();
+	}
+}
@@ -0,0 +1,188 @@
+package vace117.garage.opener.secure.channel.replay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import vace117.garage.opener.secure.channel.CommunicationChannel;
+import vace117.garage.opener.secure.channel.SecurityException;
+import vace117.garage.opener.secure.channel.crypto.AESChannelClient;
+import vace117.garage.opener.secure.channel.crypto.AESFrameCodec;
+import vace117.garage.opener.secure.channel.crypto.ConversationToken;
+import vace117.garage.opener.secure.channel.replay.SessionLog.Event;
+import vace117.garage.opener.secure.channel.replay.SessionLog.EventType;
+
+/**
+ * Plays the Spark Core's side of a recorded session to a client that uses <code>TEST_KEY</code>.
+ * <p>
+ * Every frame the client sends is checked against the recording, and the recorded response is sent back, re-encrypted
+ * under the test key, after the recorded delay. Opening the channel also takes as long as it did in the recording.
+ * A <code>speed</code> above 1 shortens all of the delays.
+ * <p>
+ * Conversation tokens depend on the key, so they are not compared. Everything after the token must match. Neither are
+ * the nonce and the counter at the start of a 0-RTT conversation, which are different every time.
+ * <p>
+ * A message may be answered with several frames, like a camera snapshot is. Each of them becomes readable at its own
+ * recorded time.
+ *
+ * @author Val Blant
+ */
+public class ReplayCommunicationChannel implements CommunicationChannel {
+
+	public static final SecretKey TEST_KEY = new SecretKeySpec(new byte[] {0,0,0,0,0,0,0,0,0,0,0,0,0,0,1,1}, "AES");
+
+	private static final byte[] HANDSHAKE = "NEED_CHALLENGE".getBytes();
+
+	private final List<Event> events;
+	private final double speed;
+	private final AESFrameCodec codec = new AESFrameCodec(TEST_KEY);
+
+	private int nextEvent = 0;
+
+	private byte[] response; // All of the response frames to the last message, back to back
+	private int responsePosition;
+	private List<Integer> frameEnds = new ArrayList<Integer>();
+	private List<Long> frameReadyTimes = new ArrayList<Long>(); // ns
+
+	private long waitingNanos = 0;
+
+
+	/**
+	 * @param events The recorded session
+	 * @param speed 1 for the original speed, 2 for twice as fast, etc.
+	 */
+	public ReplayCommunicationChannel(List<Event> events, double speed) {
+		this.events = events;
+		this.speed = speed;
+	}
+
+	@Override
+	public void open() throws IOException {
+		Event event = nextEvent(EventType.OPEN);
+		sleepUntil(System.nanoTime() + scale(event.delayMicros));
+	}
+
+	@Override
+	public void close() throws IOException {
+		nextEvent(EventType.CLOSE);
+		response = null;
+	}
+
+	@Override
+	public byte[] read(int numberOfBytes) throws IOException {
+		if ( response == null || responsePosition + numberOfBytes > response.length ) {
+			throw new IOException("The recording has no more data to send");
+		}
+
+		// Wait for the frame that the last requested byte is in
+		//
+		int frame = 0;
+		while ( frameEnds.get(frame) < responsePosition + numberOfBytes ) frame++;
+		sleepUntil(frameReadyTimes.get(frame));
+
+		byte[] bytes = Arrays.copyOfRange(response, responsePosition, responsePosition + numberOfBytes);
+		responsePosition += numberOfBytes;
+		return bytes;
+	}
+
+	@Override
+	public void write(byte[] bytes) throws IOException {
+		byte[] sent;
+		try {
+			sent = codec.decode(bytes);
+		} catch (SecurityException e) {
+			throw new IOException("The client is not using the test key");
+		}
+
+		Event expected = nextEvent(EventType.SENT);
+		if ( !isSameMessage(expected.payload, sent) ) {
+			throw new IOException("Replay diverged at event " + (nextEvent - 1) + ": expected '" + new String(expected.payload)
+					+ "', but the client sent '" + new String(sent) + "'");
+		}
+
+		long sentTime = System.nanoTime();
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		frameEnds.clear();
+		frameReadyTimes.clear();
+		do {
+			Event recordedResponse = nextEvent(EventType.RECEIVED);
+			frames.write(codec.encode(recordedResponse.payload));
+			frameEnds.add(frames.size());
+			frameReadyTimes.add(sentTime + scale(recordedResponse.delayMicros));
+		} while ( nextEvent < events.size() && events.get(nextEvent).type == EventType.RECEIVED );
+		
+		response = frames.toByteArray();
+		responsePosition = 0;
+	}
+
+	/**
+	 * @return Index of the next event that the client is expected to play
+	 */
+	public int getPosition() {
+		return nextEvent;
+	}
+
+	/**
+	 * @return How long the client has spent waiting for the recorded network so far, in ms
+	 */
+	public long getWaitingMillis() {
+		return waitingNanos / 1000000;
+	}
+
+
+	private boolean isSameMessage(byte[] recorded, byte[] sent) {
+		if ( Arrays.equals(recorded, HANDSHAKE) || recorded.length < ConversationToken.LENGTH ) {
+			return Arrays.equals(recorded, sent);
+		}
+
+		int prefixSize = isZeroRoundTrip(recorded) ? AESChannelClient.ZERO_RTT_PREFIX_SIZE : ConversationToken.LENGTH;
+		return sent.length == recorded.length
+				&& isZeroRoundTrip(recorded) == isZeroRoundTrip(sent)
+				&& Arrays.equals(
+						Arrays.copyOfRange(recorded, prefixSize, recorded.length),
+						Arrays.copyOfRange(sent, prefixSize, sent.length));
+	}
+
+	/**
+	 * @return <code>true</code> for the first message of a 0-RTT conversation
+	 */
+	static boolean isZeroRoundTrip(byte[] message) {
+		return message.length >= AESChannelClient.ZERO_RTT_PREFIX_SIZE
+				&& new String(message, 0, AESChannelClient.ZERO_RTT_HEADER.length()).equals(AESChannelClient.ZERO_RTT_HEADER);
+	}
+
+	private Event nextEvent(EventType type) throws IOException {
+		if ( nextEvent >= events.size() ) {
+			throw new IOException("The recording is over, but the client wants to " + type);
+		}
+
+		Event event = events.get(nextEvent++);
+		if ( event.type != type ) {
+			throw new IOException("Replay diverged at event " + (nextEvent - 1) + ": expected " + event.type + ", but got " + type);
+		}
+		return event;
+	}
+
+	private long scale(long delayMicros) {
+		return (long) (delayMicros * 1000 / speed);
+	}
+
+	private void sleepUntil(long time) throws IOException {
+		long startTime = System.nanoTime();
+		long remaining = time - startTime;
+		if ( remaining <= 0 ) return;
+
+		try {
+			Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		waitingNanos += System.nanoTime() - startTime;
+	}
+}
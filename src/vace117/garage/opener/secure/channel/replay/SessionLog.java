@@ -0,0 +1,133 @@
+package vace117.garage.opener.secure.channel.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary log of a session with the Spark Core, as seen by a <code>CommunicationChannel</code>.
+ * <p>
+ * Only the plain text of the frames is kept, so a log can be replayed under any key and doesn't depend on the Master Key.
+ * The format is:
+ * <pre>
+ *   MAGIC[4]
+ *   { Type[1], Delay_us[varint], (Length[varint], Plain_Text[Length]) if SENT or RECEIVED }*
+ * </pre>
+ * The meaning of the delay depends on the type of the event:
+ * <ul>
+ * 	<li>OPEN: how long it took to open the channel</li>
+ * 	<li>SENT: time since the previous event, spent by the client</li>
+ * 	<li>RECEIVED: time from sending the previous frame until the whole response arrived</li>
+ * 	<li>CLOSE: time since the previous event</li>
+ * </ul>
+ *
+ * @author Val Blant
+ */
+public class SessionLog {
+
+	private static final int MAGIC = 0x47445231; // "GDR1"
+
+	public enum EventType {OPEN, CLOSE, SENT, RECEIVED}
+
+	public static class Event {
+		public final EventType type;
+		public final long delayMicros;
+		public final byte[] payload;
+
+		public Event(EventType type, long delayMicros, byte[] payload) {
+			this.type = type;
+			this.delayMicros = delayMicros;
+			this.payload = payload;
+		}
+	}
+
+
+	/**
+	 * Appends events to a log. Thread safe.
+	 */
+	public static class Writer {
+		private final DataOutputStream out;
+
+		public Writer(OutputStream out) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(out));
+			this.out.writeInt(MAGIC);
+		}
+
+		/**
+		 * @param payload Plain text of the frame for SENT and RECEIVED, ignored otherwise
+		 */
+		public synchronized void write(EventType type, long delayMicros, byte[] payload) throws IOException {
+			out.writeByte(type.ordinal());
+			writeVarint(out, delayMicros);
+			if ( type == EventType.SENT || type == EventType.RECEIVED ) {
+				writeVarint(out, payload.length);
+				out.write(payload);
+			}
+		}
+
+		public synchronized void flush() throws IOException {
+			out.flush();
+		}
+
+		public synchronized void close() throws IOException {
+			out.close();
+		}
+	}
+
+
+	/**
+	 * Reads a whole log
+	 */
+	public static List<Event> read(InputStream input) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		if ( in.readInt() != MAGIC ) {
+			throw new IOException("Not a session log");
+		}
+
+		EventType[] types = EventType.values();
+		List<Event> events = new ArrayList<Event>();
+		while ( true ) {
+			int type = in.read();
+			if ( type < 0 ) break;
+			if ( type >= types.length ) throw new IOException("Corrupt session log: unknown event type " + type);
+
+			long delayMicros = readVarint(in);
+			byte[] payload = null;
+			if ( types[type] == EventType.SENT || types[type] == EventType.RECEIVED ) {
+				payload = new byte[(int) readVarint(in)];
+				in.readFully(payload);
+			}
+
+			events.add(new Event(types[type], delayMicros, payload));
+		}
+
+		return events;
+	}
+
+
+	private static void writeVarint(DataOutputStream out, long value) throws IOException {
+		while ( (value & ~0x7FL) != 0 ) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarint(DataInputStream in) throws IOException {
+		long value = 0;
+		for ( int shift = 0; shift < 64; shift += 7 ) {
+			int b = in.read();
+			if ( b < 0 ) throw new EOFException("Truncated session log");
+
+			value |= (long) (b & 0x7F) << shift;
+			if ( (b & 0x80) == 0 ) return value;
+		}
+		throw new IOException("Corrupt session log: varint too long");
+	}
+}
@@ -0,0 +1,116 @@
+package vace117.garage.opener.secure.channel.replay;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import vace117.garage.opener.secure.channel.Conversation;
+import vace117.garage.opener.secure.channel.SnapshotListener;
+import vace117.garage.opener.secure.channel.crypto.AESChannelClient;
+import vace117.garage.opener.secure.channel.crypto.ConversationToken;
+import vace117.garage.opener.secure.channel.replay.SessionLog.Event;
+
+/**
+ * Replays a recorded session through <code>AESChannelClient</code> on a plain JVM, and reports how much of the time
+ * was spent in the client rather than waiting for the (recorded) network. Useful for benchmarking client-side changes
+ * against real traffic without a Spark Core.
+ * <pre>
+ * 	java vace117.garage.opener.secure.channel.replay.SessionReplay session.log [speed]
+ * </pre>
+ * The client makes the same calls as in the recording: the same handshakes, followed by the same messages. Conversations
+ * that were started with a 0-RTT message are started the same way. If the server refused one, the client falls back
+ * to the handshake on its own, like it did in the recording.
+ *
+ * @author Val Blant
+ */
+public class SessionReplay {
+
+	private static final SnapshotListener IGNORE_SNAPSHOT = new SnapshotListener() {
+		public void snapshotReceived(byte[] image, int receivedLength, int totalLength) {
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length < 1 ) {
+			System.err.println("Usage: SessionReplay <session log> [speed]");
+			System.exit(1);
+		}
+		double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+
+		List<Event> events;
+		InputStream input = new FileInputStream(args[0]);
+		try {
+			events = SessionLog.read(input);
+		}
+		finally {
+			input.close();
+		}
+
+		ReplayCommunicationChannel channel = new ReplayCommunicationChannel(events, speed);
+		AESChannelClient client = new AESChannelClient(channel, ReplayCommunicationChannel.TEST_KEY);
+
+		long startTime = System.nanoTime();
+		int messages = replay(events, client, channel);
+		long totalMillis = (System.nanoTime() - startTime) / 1000000;
+
+		System.out.println("Replayed " + messages + " messages at " + speed + "x in " + totalMillis + "ms");
+		System.out.println("Waiting for the network: " + channel.getWaitingMillis() + "ms");
+		System.out.println("In the client:           " + (totalMillis - channel.getWaitingMillis()) + "ms");
+	}
+
+	/**
+	 * Makes the client repeat the calls it made during the recording
+	 *
+	 * @param channel The channel that the client uses, which plays the recording
+	 * @return Number of messages sent
+	 */
+	public static int replay(List<Event> events, AESChannelClient client, ReplayCommunicationChannel channel) throws Exception {
+		Conversation conversation = null;
+		int messages = 0;
+
+		int position = 0;
+		while ( position < events.size() ) {
+			Event event = events.get(position);
+			switch ( event.type ) {
+				case OPEN:
+					client.openCommunicationChannel();
+					break;
+				case CLOSE:
+					client.closeCommunicationChannel();
+					break;
+				case SENT:
+					if ( "NEED_CHALLENGE".equals(new String(event.payload)) ) {
+						client.setZeroRoundTrip(false);
+						conversation = client.createConversation();
+					}
+					else {
+						int prefixSize = ConversationToken.LENGTH;
+						if ( ReplayCommunicationChannel.isZeroRoundTrip(event.payload) ) {
+							client.setZeroRoundTrip(true);
+							conversation = client.createConversation();
+							prefixSize = AESChannelClient.ZERO_RTT_PREFIX_SIZE;
+						}
+						
+						String message = new String(Arrays.copyOfRange(event.payload, prefixSize, event.payload.length));
+						if ( "SNAPSHOT".equals(message) ) {
+							conversation.requestSnapshot(IGNORE_SNAPSHOT);
+						}
+						else {
+							conversation.sendMessage(message);
+						}
+					}
+					messages++;
+					break;
+				case RECEIVED:
+					break; // The channel sends these back on its own
+			}
+			
+			// A call can play more than one event, e.g. when the client falls back from 0-RTT to the handshake
+			//
+			position = Math.max(position + 1, channel.getPosition());
+		}
+
+		return messages;
+	}
+}
@@ -0,0 +1,153 @@
+package vace117.garage.opener.secure.channel.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes how a <code>ScriptedDoor</code> behaves. Scenarios are written in a compact script, so that the same
+ * conditions can be reproduced for every run of a test.
+ * <p>
+ * A script is a list of directives, separated by semicolons or new lines. Anything after a <code>#</code> is a comment.
+ * <pre>
+ * 	start=CLOSED          # The door starts out closed (default) or OPEN
+ * 	travel=12000/10000    # Opening takes 12s, closing takes 10s. A single number is used for both.
+ * 	latency=80..250       # Every message takes between 80 and 250ms. A single number is a fixed latency.
+ * 	seed=42               # Seed for the random latency and faults
+ * 	fail=0.05             # 5% of the messages fail with an IOException
+ * 	expire=0.02           # 2% of the commands are answered with an expired conversation
+ * 	fail@7                # The 7th message fails
+ * 	expire@12             # The 12th command is answered with an expired conversation
+ * 	stall@3=5000          # The 3rd message takes an extra 5s
+ * 	button+20000          # Somebody presses the button in the garage 20s into the scenario
+ * </pre>
+ * <code>@</code> always refers to a message, and <code>+</code> to a time since the start of the scenario.
+ * Messages are counted from 1, in the order they arrive, including the handshakes. Scenarios are immutable.
+ *
+ * @author Val Blant
+ */
+public class DoorScenario {
+
+	boolean isInitiallyOpen = false;
+	long openingMillis = 10000;
+	long closingMillis = 10000;
+	long minLatencyMillis = 0;
+	long maxLatencyMillis = 0;
+	long seed = 0;
+	double failureRate = 0;
+	double expiryRate = 0;
+
+	final Map<Long, Long> stalls = new HashMap<Long, Long>();
+	final List<Long> failures = new ArrayList<Long>();
+	final List<Long> expiries = new ArrayList<Long>();
+
+	/**
+	 * Times of button presses, in ms from the start of the scenario, in ascending order
+	 */
+	final List<Long> buttonPresses = new ArrayList<Long>();
+
+	private final String script;
+
+
+	/**
+	 * @throws IllegalArgumentException If the script can't be parsed
+	 */
+	public static DoorScenario parse(String script) {
+		return new DoorScenario(script);
+	}
+
+	private DoorScenario(String script) {
+		this.script = script;
+
+		for ( String line : script.split("[;\n]") ) {
+			int commentStart = line.indexOf('#');
+			String directive = (commentStart >= 0 ? line.substring(0, commentStart) : line).trim();
+			if ( directive.length() > 0 ) {
+				try {
+					parseDirective(directive);
+				}
+				catch (RuntimeException e) {
+					throw new IllegalArgumentException("Bad scenario directive '" + directive + "': " + e.getMessage(), e);
+				}
+			}
+		}
+
+		Collections.sort(buttonPresses);
+	}
+
+	private void parseDirective(String directive) {
+		String name = directive;
+		String value = null;
+
+		int equals = directive.indexOf('=');
+		if ( equals >= 0 ) {
+			name = directive.substring(0, equals).trim();
+			value = directive.substring(equals + 1).trim();
+		}
+
+		int plus = name.indexOf('+');
+		if ( plus >= 0 ) {
+			if ( !"button".equals(name.substring(0, plus).trim()) || value != null ) {
+				throw new IllegalArgumentException("Unknown directive");
+			}
+			buttonPresses.add(Long.parseLong(name.substring(plus + 1).trim()));
+			return;
+		}
+
+		Long messageNumber = null;
+		int at = name.indexOf('@');
+		if ( at >= 0 ) {
+			messageNumber = Long.parseLong(name.substring(at + 1).trim());
+			name = name.substring(0, at).trim();
+		}
+
+		if ( messageNumber != null ) {
+			if ( "fail".equals(name) ) failures.add(messageNumber);
+			else if ( "expire".equals(name) ) expiries.add(messageNumber);
+			else if ( "stall".equals(name) ) stalls.put(messageNumber, Long.parseLong(required(value)));
+			else if ( "button".equals(name) ) throw new IllegalArgumentException("Button presses are timed: button+<ms>");
+			else throw new IllegalArgumentException("Unknown directive");
+			return;
+		}
+
+		value = required(value);
+		if ( "start".equals(name) ) {
+			if ( "OPEN".equalsIgnoreCase(value) ) isInitiallyOpen = true;
+			else if ( "CLOSED".equalsIgnoreCase(value) ) isInitiallyOpen = false;
+			else throw new IllegalArgumentException("Expected OPEN or CLOSED");
+		}
+		else if ( "travel".equals(name) ) {
+			int slash = value.indexOf('/');
+			openingMillis = Long.parseLong((slash >= 0 ? value.substring(0, slash) : value).trim());
+			closingMillis = slash >= 0 ? Long.parseLong(value.substring(slash + 1).trim()) : openingMillis;
+		}
+		else if ( "latency".equals(name) ) {
+			int range = value.indexOf("..");
+			minLatencyMillis = Long.parseLong((range >= 0 ? value.substring(0, range) : value).trim());
+			maxLatencyMillis = range >= 0 ? Long.parseLong(value.substring(range + 2).trim()) : minLatencyMillis;
+			if ( maxLatencyMillis < minLatencyMillis ) throw new IllegalArgumentException("Empty latency range");
+		}
+		else if ( "seed".equals(name) ) seed = Long.parseLong(value);
+		else if ( "fail".equals(name) ) failureRate = probability(value);
+		else if ( "expire".equals(name) ) expiryRate = probability(value);
+		else throw new IllegalArgumentException("Unknown directive");
+	}
+
+	private static String required(String value) {
+		if ( value == null || value.length() == 0 ) throw new IllegalArgumentException("Value expected");
+		return value;
+	}
+
+	private static double probability(String value) {
+		double p = Double.parseDouble(value);
+		if ( p < 0 || p > 1 ) throw new IllegalArgumentException("Probability must be between 0 and 1");
+		return p;
+	}
+
+	@Override
+	public String toString() {
+		return script;
+	}
+}
@@ -0,0 +1,154 @@
+package vace117.garage.opener.secure.channel.test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vace117.garage.opener.secure.channel.ConversationExpiredException;
+
+/**
+ * A simulated garage door that plays out a <code>DoorScenario</code> in wall-clock time.
+ * <p>
+ * The door takes the scripted travel time to open or close, and answers the same commands as the Spark Core.
+ * Button presses happen at their scripted times, whether or not anybody is talking to the door.
+ * Every message is delayed and may fail as the scenario says.
+ * <p>
+ * The random latency and faults of a message only depend on the seed and the message number, so a scenario plays
+ * out the same way no matter which threads send the messages. Messages are numbered in the order they arrive, though,
+ * so concurrent callers can still trade places.
+ * <p>
+ * Thread safe. Latency is simulated outside of the lock, so concurrent callers don't wait for each other.
+ *
+ * @author Val Blant
+ */
+public class ScriptedDoor {
+
+	private static final long SEED_SPREAD = 0x9E3779B97F4A7C15L; // Keeps the seeds of consecutive messages far apart
+
+	private final DoorScenario scenario;
+	private final long startTime = System.nanoTime();
+
+	private final AtomicLong messageCount = new AtomicLong();
+
+	private boolean isOpen;
+	private long movementEndTime = 0; // ms since start
+	private int nextButtonPress = 0;
+
+
+	public ScriptedDoor(DoorScenario scenario) {
+		this.scenario = scenario;
+		this.isOpen = scenario.isInitiallyOpen;
+	}
+
+	/**
+	 * Simulates the conversation handshake: latency and failures only
+	 */
+	public void handshake() throws IOException {
+		try {
+			receiveMessage(false);
+		} catch (ConversationExpiredException e) {
+			throw new IllegalStateException("Handshakes can't expire", e);
+		}
+	}
+
+	/**
+	 * Executes one command, like the Spark Core would
+	 *
+	 * @param command GET_STATUS, OPEN or CLOSE
+	 * @return The door status after the command
+	 */
+	public String execute(String command) throws ConversationExpiredException, IOException {
+		receiveMessage(true);
+
+		synchronized (this) {
+			long now = now();
+			playButtonPresses(now);
+
+			if ( "OPEN".equals(command) || "CLOSE".equals(command) ) {
+				startMoving("OPEN".equals(command), now);
+			}
+			else if ( !"GET_STATUS".equals(command) ) {
+				throw new IllegalStateException("Unknown command: " + command);
+			}
+
+			return status(now);
+		}
+	}
+
+	/**
+	 * @return The actual state of the door, which a controller can only find out with GET_STATUS
+	 */
+	public synchronized String getActualStatus() {
+		long now = now();
+		playButtonPresses(now);
+		return status(now);
+	}
+
+	/**
+	 * @return Number of messages received so far, including handshakes
+	 */
+	public long getMessageCount() {
+		return messageCount.get();
+	}
+
+
+	/**
+	 * Applies the scripted latency and faults to the next message
+	 */
+	private void receiveMessage(boolean isCommand) throws ConversationExpiredException, IOException {
+		long messageNumber = messageCount.incrementAndGet();
+
+		Random random = new Random(scenario.seed + messageNumber * SEED_SPREAD);
+
+		long delay = scenario.minLatencyMillis;
+		if ( scenario.maxLatencyMillis > scenario.minLatencyMillis ) {
+			delay += (long) (random.nextDouble() * (scenario.maxLatencyMillis - scenario.minLatencyMillis));
+		}
+		Long stall = scenario.stalls.get(messageNumber);
+		if ( stall != null ) delay += stall;
+
+		boolean isFailure = scenario.failures.contains(messageNumber) || random.nextDouble() < scenario.failureRate;
+		boolean isExpired = isCommand && (scenario.expiries.contains(messageNumber) || random.nextDouble() < scenario.expiryRate);
+
+		if ( delay > 0 ) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+		}
+
+		if ( isFailure ) throw new IOException("Scripted failure of message " + messageNumber);
+		if ( isExpired ) throw new ConversationExpiredException();
+	}
+
+	/**
+	 * Catches up with the button presses that should have happened by now, each at its own time
+	 */
+	private void playButtonPresses(long now) {
+		while ( nextButtonPress < scenario.buttonPresses.size() && scenario.buttonPresses.get(nextButtonPress) <= now ) {
+			long pressTime = scenario.buttonPresses.get(nextButtonPress++);
+			startMoving(!isOpen, pressTime);
+		}
+	}
+
+	/**
+	 * Like the Spark Core, ignores commands while the door is moving or already where it's asked to go
+	 */
+	private void startMoving(boolean toOpen, long time) {
+		if ( time >= movementEndTime && isOpen != toOpen ) {
+			isOpen = toOpen;
+			movementEndTime = time + (toOpen ? scenario.openingMillis : scenario.closingMillis);
+		}
+	}
+
+	private String status(long now) {
+		if ( now < movementEndTime ) return "DOOR_MOVING";
+		return isOpen ? "DOOR_OPEN" : "DOOR_CLOSED";
+	}
+
+	private long now() {
+		return (System.nanoTime() - startTime) / 1000000L;
+	}
+}
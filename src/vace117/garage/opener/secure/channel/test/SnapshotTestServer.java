@@ -0,0 +1,264 @@
+package vace117.garage.opener.secure.channel.test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import vace117.garage.opener.secure.channel.CommandBatch;
+import vace117.garage.opener.secure.channel.ConversationExpiredException;
+import vace117.garage.opener.secure.channel.SecurityException;
+import vace117.garage.opener.secure.channel.crypto.AESChannelClient;
+import vace117.garage.opener.secure.channel.crypto.AESFrameCodec;
+import vace117.garage.opener.secure.channel.crypto.ConversationToken;
+import vace117.garage.opener.secure.channel.replay.ReplayCommunicationChannel;
+
+/**
+ * A stand-in for a Spark Core with a camera, for trying out snapshots and 0-RTT conversations on a plain JVM:
+ * <pre>
+ * 	java vace117.garage.opener.secure.channel.test.SnapshotTestServer 45666 200 door1.jpg door2.jpg
+ * </pre>
+ * The arguments are the port, a delay between the chunks in ms, which makes a slow link, and the images to serve.
+ * Every snapshot is the next image in the list.
+ * <p>
+ * The server speaks the protocol described in <code>AESChannelClient</code>, under
+ * <code>ReplayCommunicationChannel.TEST_KEY</code>. Commands other than <code>SNAPSHOT</code> go to a <code>ScriptedDoor</code>
+ * that plays out <code>TestChannelClient.DEFAULT_SCENARIO</code>. Each connection gets its own thread.
+ * <p>
+ * 0-RTT conversations are accepted if their counter is higher than the last accepted one, and within
+ * <code>ZERO_RTT_WINDOW</code> of the server's clock. Counters from before the server started are refused, so that
+ * nothing recorded before a restart can be replayed.
+ *
+ * @author Val Blant
+ */
+public class SnapshotTestServer {
+
+	public static final int CHUNK_SIZE = 4096;
+	public static final long ZERO_RTT_WINDOW = 60000; //ms
+
+	private static final String BATCH_HEADER = "BATCH" + CommandBatch.SEPARATOR;
+
+	private final List<byte[]> images;
+	private final long chunkDelayMillis;
+	private final AESFrameCodec codec = new AESFrameCodec(ReplayCommunicationChannel.TEST_KEY);
+	private final ScriptedDoor door = new ScriptedDoor(DoorScenario.parse(TestChannelClient.DEFAULT_SCENARIO));
+	private final SecureRandom random = new SecureRandom();
+
+	private int nextImage = 0;
+	private long lastZeroRoundTripCounter = System.currentTimeMillis();
+
+
+	public SnapshotTestServer(List<byte[]> images, long chunkDelayMillis) {
+		this.images = images;
+		this.chunkDelayMillis = chunkDelayMillis;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if ( args.length < 3 ) {
+			System.err.println("Usage: SnapshotTestServer <port> <chunk delay ms> <image.jpg>...");
+			System.exit(1);
+		}
+
+		List<byte[]> images = new ArrayList<byte[]>();
+		for ( int i = 2; i < args.length; i++ ) {
+			images.add(readFile(new File(args[i])));
+		}
+
+		ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]));
+		System.out.println("Serving " + images.size() + " images on port " + serverSocket.getLocalPort());
+		new SnapshotTestServer(images, Long.parseLong(args[1])).serve(serverSocket);
+	}
+
+	/**
+	 * Accepts connections until the socket is closed
+	 */
+	public void serve(ServerSocket serverSocket) throws IOException {
+		while ( !serverSocket.isClosed() ) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if ( serverSocket.isClosed() ) return;
+				throw e;
+			}
+
+			Thread connection = new Thread(new Runnable() {
+				public void run() {
+					try {
+						talkTo(socket);
+					} catch (IOException e) {
+						System.err.println(socket.getRemoteSocketAddress() + ": " + e);
+					}
+				}
+			}, "SnapshotTestServer " + socket.getRemoteSocketAddress());
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	/**
+	 * Answers frames until the client hangs up
+	 */
+	private void talkTo(Socket socket) throws IOException {
+		try {
+			DataInputStream input = new DataInputStream(socket.getInputStream());
+			OutputStream output = socket.getOutputStream();
+
+			byte[] token = null;
+			byte[] lengthPrefix = new byte[AESFrameCodec.LENGTH_PREFIX_SIZE];
+			while ( true ) {
+				try {
+					input.readFully(lengthPrefix);
+				} catch (IOException e) {
+					return; // Hung up
+				}
+				byte[] frame = new byte[AESFrameCodec.readFrameLength(lengthPrefix)];
+				System.arraycopy(lengthPrefix, 0, frame, 0, lengthPrefix.length);
+				input.readFully(frame, lengthPrefix.length, frame.length - lengthPrefix.length);
+
+				byte[] message;
+				try {
+					message = codec.decode(frame);
+				} catch (SecurityException e) {
+					throw new IOException("The client is not using the test key");
+				}
+
+				if ( Arrays.equals(message, "NEED_CHALLENGE".getBytes()) ) {
+					door.handshake();
+					byte[] challenge = new byte[16];
+					random.nextBytes(challenge);
+					token = new ConversationToken(challenge, codec.getKeys()).getBytes();
+					output.write(codec.encode(challenge));
+				}
+				else if ( isZeroRoundTrip(message) ) {
+					ByteBuffer payload = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+					payload.position(AESChannelClient.ZERO_RTT_HEADER.length());
+					byte[] nonce = new byte[AESChannelClient.ZERO_RTT_NONCE_SIZE];
+					payload.get(nonce);
+					long counter = payload.getLong();
+
+					if ( acceptZeroRoundTrip(counter) ) {
+						token = ConversationToken.forZeroRoundTrip(nonce, counter, codec.getKeys()).getBytes();
+						door.handshake();
+						respond(output, new String(message, payload.position(), payload.remaining()),
+								AESChannelClient.ZERO_RTT_RESPONSE_HEADER);
+					}
+					else {
+						output.write(codec.encode(AESChannelClient.ZERO_RTT_REJECTED.getBytes()));
+					}
+				}
+				else if ( token == null || message.length < token.length
+						|| !Arrays.equals(token, Arrays.copyOf(message, token.length)) ) {
+					output.write(codec.encode("SESSION_EXPIRED".getBytes()));
+				}
+				else {
+					respond(output, new String(message, token.length, message.length - token.length), "");
+				}
+			}
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * @param responseHeader Goes in front of the response, or of the snapshot header
+	 */
+	private void respond(OutputStream output, String command, String responseHeader) throws IOException {
+		if ( "SNAPSHOT".equals(command) ) {
+			sendSnapshot(output, responseHeader);
+		}
+		else {
+			output.write(codec.encode((responseHeader + execute(command)).getBytes()));
+		}
+	}
+
+	private static boolean isZeroRoundTrip(byte[] message) {
+		return message.length >= AESChannelClient.ZERO_RTT_PREFIX_SIZE
+				&& new String(message, 0, AESChannelClient.ZERO_RTT_HEADER.length()).equals(AESChannelClient.ZERO_RTT_HEADER);
+	}
+
+	/**
+	 * Every counter is only accepted once
+	 */
+	private synchronized boolean acceptZeroRoundTrip(long counter) {
+		if ( counter <= lastZeroRoundTripCounter || Math.abs(counter - System.currentTimeMillis()) > ZERO_RTT_WINDOW ) {
+			return false;
+		}
+
+		lastZeroRoundTripCounter = counter;
+		return true;
+	}
+
+	/**
+	 * @return What the Spark Core would answer, batches included
+	 */
+	private String execute(String command) throws IOException {
+		try {
+			if ( !command.startsWith(BATCH_HEADER) ) {
+				return door.execute(command);
+			}
+
+			StringBuilder response = new StringBuilder(BATCH_HEADER);
+			for ( String batchCommand : command.substring(BATCH_HEADER.length()).split(String.valueOf(CommandBatch.SEPARATOR)) ) {
+				response.append(door.execute(batchCommand)).append(CommandBatch.SEPARATOR);
+			}
+			response.setLength(response.length() - 1);
+			return response.toString();
+		}
+		catch (ConversationExpiredException e) {
+			return "SESSION_EXPIRED";
+		}
+	}
+
+	private void sendSnapshot(OutputStream output, String responseHeader) throws IOException {
+		byte[] image;
+		synchronized (this) {
+			image = images.get(nextImage);
+			nextImage = (nextImage + 1) % images.size();
+		}
+
+		output.write(codec.encode((responseHeader + "SNAPSHOT " + image.length + " " + CHUNK_SIZE).getBytes()));
+
+		for ( int offset = 0, chunkNumber = 0; offset < image.length; offset += CHUNK_SIZE, chunkNumber++ ) {
+			int length = Math.min(CHUNK_SIZE, image.length - offset);
+			ByteBuffer chunk = ByteBuffer.allocate(2 + length).order(ByteOrder.LITTLE_ENDIAN);
+			chunk.putShort((short) chunkNumber).put(image, offset, length);
+
+			pause(chunkDelayMillis);
+			output.write(codec.encode(chunk.array()));
+			output.flush();
+		}
+	}
+
+	private static void pause(long millis) throws IOException {
+		if ( millis <= 0 ) return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] contents = new byte[(int) file.length()];
+		DataInputStream input = new DataInputStream(new FileInputStream(file));
+		try {
+			input.readFully(contents);
+		}
+		finally {
+			input.close();
+		}
+		return contents;
+	}
+}
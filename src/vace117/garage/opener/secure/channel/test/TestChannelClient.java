@@ -2,99 +2,96 @@ package vace117.garage.opener.secure.channel.test;
 
 import java.io.IOException;
 
+import vace117.garage.opener.secure.channel.AbstractSecureChannelClient;
+import vace117.garage.opener.secure.channel.BatchResponse;
+import vace117.garage.opener.secure.channel.CommandBatch;
 import vace117.garage.opener.secure.channel.CommunicationChannel;
 import vace117.garage.opener.secure.channel.Conversation;
 import vace117.garage.opener.secure.channel.ConversationExpiredException;
 import vace117.garage.opener.secure.channel.SecurityException;
-import vace117.garage.opener.secure.channel.AbstractSecureChannelClient;
+import vace117.garage.opener.secure.channel.SnapshotListener;
 
 /**
  * Just for testing the Android code w/o having to connect to anything or do any crypto. 
+ * <p>
+ * Conversations talk to a <code>ScriptedDoor</code>, which plays out a <code>DoorScenario</code> in real time.
  *
  * @author Val Blant
  */
 public class TestChannelClient extends AbstractSecureChannelClient {
-	private static int counter = 0;
-
 	
+	/**
+	 * A door that takes a few seconds to move, on a slightly slow network
+	 */
+	public static final String DEFAULT_SCENARIO = "start=CLOSED; travel=6000; latency=100..300; seed=1";
+	
+	private final ScriptedDoor door;
+
 	
 	public TestChannelClient(CommunicationChannel commChannel) {
+		this(commChannel, DoorScenario.parse(DEFAULT_SCENARIO));
+	}
+	
+	public TestChannelClient(CommunicationChannel commChannel, DoorScenario scenario) {
 		super(commChannel);
+		this.door = new ScriptedDoor(scenario);
 	}
 
 	@Override
 	public Conversation createConversation() throws SecurityException, IOException {
-		return new OpenCloseSequenceTest();
+		door.handshake();
+		return new ScriptedDoorConversation();
+	}
+	
+	public ScriptedDoor getDoor() {
+		return door;
+	}
+	
+	/**
+	 * Test conversations have no frames to save, so batches are simply sent one command at a time.
+	 * There is no camera either. <code>SnapshotTestServer</code> serves snapshots over a real channel.
+	 */
+	public abstract class SequentialBatchConversation implements Conversation {
+		@Override
+		public BatchResponse sendBatch(CommandBatch batch) throws ConversationExpiredException, SecurityException, IOException {
+			return batch.sendSequentially(this);
+		}
+		
+		@Override
+		public byte[] requestSnapshot(SnapshotListener listener) throws ConversationExpiredException, SecurityException, IOException {
+			throw new IOException("The test garage has no camera");
+		}
 	}
 	
 	/**
-	 * Allows repetetive testing of open/close 
+	 * Passes every command to the door 
 	 *
 	 * @author Val Blant
 	 */
-	public class OpenCloseSequenceTest implements Conversation {
+	public class ScriptedDoorConversation extends SequentialBatchConversation {
 		
 		@Override
 		public String sendMessage(String message) throws ConversationExpiredException, SecurityException, IOException {
-			if ( counter == 0 ) {
-				if ( message.equals("GET_STATUS") )	return "DOOR_CLOSED";
-				if ( message.equals("OPEN") ) {	counter = 1; return "DOOR_MOVING"; }
-			}
-			else if ( counter <= 3 ) {
-				counter++;
-				return "DOOR_MOVING";
-			}
-			else if ( counter == 4 ) {
-				counter++;
-				return "DOOR_OPEN";
-			}
-			else if ( counter == 5 ) {
-				counter = 10;
-				return "DOOR_OPEN";
-			}
-			else if ( counter == 10 ) {
-				if ( message.equals("CLOSE") ) {
-					counter = 11; 
-					return "DOOR_MOVING"; 
-				}
-				else {
-					throw new IllegalStateException("I expected CLOSE");
-				}
-			}
-			else if ( counter <= 13 ) {
-				counter++;
-				return "DOOR_MOVING";
-			}
-			else if ( counter == 14 ) {
-				counter++;
-				return "DOOR_CLOSED";
-			}
-			else if ( counter == 15 ) {
-				counter = 0;
-				return "DOOR_CLOSED";
-			}
-			
-			
-			throw new IllegalStateException("Counter out of whack");
+			return door.execute(message);
 		}
 	}
 	
 
-	public class DoorMovingTest implements Conversation {
+	public class DoorMovingTest extends SequentialBatchConversation {
 		@Override
 		public String sendMessage(String message) throws ConversationExpiredException, SecurityException, IOException {
 			return "DOOR_MOVING";
 		}
 	}
 	
-	public class DoorOpenTest implements Conversation {
+	public class DoorOpenTest extends SequentialBatchConversation {
 		@Override
 		public String sendMessage(String message) throws ConversationExpiredException, SecurityException, IOException {
 			return "DOOR_OPEN";
 		}
 	}
 
-	public class DoorClosedTest implements Conversation {
+	public class DoorClosedTest extends SequentialBatchConversation {
 		@Override
 		public String sendMessage(String message) throws ConversationExpiredException, SecurityException, IOException {
 			return "DOOR_CLOSED";
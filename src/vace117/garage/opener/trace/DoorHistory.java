@@ -0,0 +1,130 @@
+package vace117.garage.opener.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Long-term history of door operations and their latencies, kept in a memory-mapped ring file.
+ * <p>
+ * The file has a fixed size, so it never grows: once it's full, the oldest records are overwritten. Each record is
+ * 16 bytes, so the default capacity holds months of normal use in 256KB. Writing a record is a few stores into the
+ * mapped memory, with no system calls and no allocation, and the OS writes the pages back to disk on its own, so
+ * nothing is lost when the process is killed.
+ * <p>
+ * The layout is:
+ * <pre>
+ *   Header[32]:  MAGIC[4], VERSION[4], Capacity[4], Record_Size[4], Total_Records[8], Reserved[8]
+ *   Records:     { Time_ms[8], Event[1], Door[1], Reserved[2], Value_ms[4] } * Capacity
+ * </pre>
+ * Door is the door's number in <code>garages.properties</code>, so that the travel times and latencies of different
+ * doors can be told apart. It is <code>NO_DOOR</code> for records that don't belong to a real door, such as those
+ * of the test mode, and for records made before doors were numbered.
+ * A record is written before <code>Total_Records</code> is bumped, so a reader never sees a half written record.
+ * <p>
+ * Like <code>LatencyTracer</code>, this is a static facade, so that any layer can record without being handed an instance.
+ * Records made before <code>open()</code> are dropped. <code>HistoryStats</code> reads the history back.
+ *
+ * @author Val Blant
+ */
+public final class DoorHistory {
+
+	static final int MAGIC = 0x47444831; // "GDH1"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int RECORD_SIZE = 16;
+	static final int TOTAL_RECORDS_OFFSET = 16;
+
+	public static final int DEFAULT_CAPACITY = 16384;
+	public static final int NO_DOOR = 0;
+	public static final int MAX_DOOR = 255;
+
+	private static MappedByteBuffer file;
+	private static int capacity;
+	private static long totalRecords;
+
+	/** Hidden constructor to prevent instantiation. */
+	private DoorHistory() {}
+
+	/**
+	 * Maps the history file, creating it if needed. A file with a different layout is started over.
+	 * Does file I/O, so keep it off the UI thread.
+	 */
+	public static synchronized void open(File historyFile, int recordCapacity) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(historyFile, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = HEADER_SIZE + (long) recordCapacity * RECORD_SIZE;
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // Grows the file, if needed
+
+			boolean isValid = mapped.getInt(0) == MAGIC
+					&& mapped.getInt(4) == VERSION
+					&& mapped.getInt(8) == recordCapacity
+					&& mapped.getInt(12) == RECORD_SIZE;
+			if ( !isValid ) {
+				mapped.putInt(0, MAGIC);
+				mapped.putInt(4, VERSION);
+				mapped.putInt(8, recordCapacity);
+				mapped.putInt(12, RECORD_SIZE);
+				mapped.putLong(TOTAL_RECORDS_OFFSET, 0);
+			}
+
+			file = mapped;
+			capacity = recordCapacity;
+			totalRecords = mapped.getLong(TOTAL_RECORDS_OFFSET);
+		}
+		finally {
+			raf.close(); // The mapping stays valid
+		}
+	}
+
+	public static synchronized boolean isOpen() {
+		return file != null;
+	}
+
+	/**
+	 * Appends a record, overwriting the oldest one if the history is full. Does nothing if the history isn't open.
+	 *
+	 * @param door The number of the door the record is about, between <code>NO_DOOR</code> and <code>MAX_DOOR</code>
+	 * @param valueMillis A duration, capped at about 24 days
+	 */
+	public static synchronized void record(HistoryEvent event, int door, long valueMillis) {
+		if ( file == null ) return;
+
+		int position = HEADER_SIZE + (int) (totalRecords % capacity) * RECORD_SIZE;
+		file.putLong(position, System.currentTimeMillis());
+		file.put(position + 8, event.getCode());
+		file.put(position + 9, (byte) door);
+		file.putInt(position + 12, (int) Math.min(valueMillis, Integer.MAX_VALUE));
+
+		totalRecords++;
+		file.putLong(TOTAL_RECORDS_OFFSET, totalRecords);
+	}
+
+	/**
+	 * @return A copy of the whole history, for <code>HistoryStats</code>, or <code>null</code> if the history isn't open
+	 */
+	public static synchronized ByteBuffer snapshot() {
+		if ( file == null ) return null;
+
+		ByteBuffer copy = ByteBuffer.allocate(file.capacity());
+		ByteBuffer source = file.duplicate();
+		source.clear();
+		copy.put(source);
+		copy.flip();
+		return copy;
+	}
+
+	/**
+	 * Unmaps the history. Records are dropped until it's opened again.
+	 */
+	public static synchronized void close() {
+		if ( file != null ) {
+			file.force();
+			file = null;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package vace117.garage.opener.trace;
+
+/**
+ * Kinds of records in the <code>DoorHistory</code>. The value of every record is a duration in ms.
+ * <p>
+ * Every kind is stored in the history file as its code, so the codes of existing kinds must never change.
+ * New kinds get new codes, and can go anywhere in the list.
+ *
+ * @author Val Blant
+ */
+public enum HistoryEvent {
+	/** The door finished opening. The value is how long it took. */
+	DOOR_OPENED(0),
+
+	/** The door finished closing. The value is how long it took. */
+	DOOR_CLOSED(1),
+
+	/** Opening the <code>CommunicationChannel</code> */
+	CONNECT(2),
+
+	/** Conversation establishment handshake */
+	HANDSHAKE(3),
+
+	/** One message sent and its response received */
+	COMMAND(4),
+
+	/** A whole conversation with the garage, from connecting to the last response, that succeeded */
+	ROUND_TRIP(5),
+
+	/** A conversation with the garage that failed. The value is how long it took to fail. */
+	FAILURE(6),
+
+	/** A camera snapshot streamed in. The value is how long the chunks took, after the header. */
+	SNAPSHOT(7);
+
+	private final byte code;
+
+	private HistoryEvent(int code) {
+		this.code = (byte) code;
+	}
+
+	/**
+	 * @return What the history file stores for this kind of record
+	 */
+	public byte getCode() {
+		return code;
+	}
+}
@@ -0,0 +1,227 @@
+package vace117.garage.opener.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Aggregations over a <code>DoorHistory</code>, e.g. the p95 opening time or the failure rate over the last week.
+ * Every door is summarized on its own, since the travel times of different doors have nothing to do with each other.
+ * <p>
+ * Works on a copy of the history taken on the device with <code>DoorHistory.snapshot()</code>, or on a history file
+ * pulled off the device, on a plain JVM:
+ * <pre>
+ * 	java vace117.garage.opener.trace.HistoryStats history.ring
+ * </pre>
+ *
+ * @author Val Blant
+ */
+public class HistoryStats {
+
+	public static final long DAY = 24 * 60 * 60 * 1000L;
+	public static final long WEEK = 7 * DAY;
+	
+	/**
+	 * Pass as the door to look at the records of all doors together
+	 */
+	public static final int ALL_DOORS = -1;
+
+	private static final HistoryEvent[] EVENTS = HistoryEvent.values();
+
+	private final long[] times;
+	private final HistoryEvent[] events; // null for records written by a newer version of the app
+	private final int[] doors;
+	private final int[] values;
+
+
+	/**
+	 * @param history The whole history file, or a <code>DoorHistory.snapshot()</code>
+	 */
+	public HistoryStats(ByteBuffer history) throws IOException {
+		if ( history.getInt(0) != DoorHistory.MAGIC || history.getInt(4) != DoorHistory.VERSION ) {
+			throw new IOException("Not a door history");
+		}
+
+		int capacity = history.getInt(8);
+		int recordSize = history.getInt(12);
+		long totalRecords = history.getLong(DoorHistory.TOTAL_RECORDS_OFFSET);
+
+		int count = (int) Math.min(totalRecords, capacity);
+		int first = (int) ((totalRecords - count) % capacity);
+
+		times = new long[count];
+		events = new HistoryEvent[count];
+		doors = new int[count];
+		values = new int[count];
+		for ( int i = 0; i < count; i++ ) {
+			int position = DoorHistory.HEADER_SIZE + ((first + i) % capacity) * recordSize;
+			times[i] = history.getLong(position);
+			events[i] = forCode(history.get(position + 8));
+			doors[i] = history.get(position + 9) & 0xFF;
+			values[i] = history.getInt(position + 12);
+		}
+	}
+
+	/**
+	 * @return Stats for the history kept in memory by <code>DoorHistory</code>, or <code>null</code> if it isn't open
+	 */
+	public static HistoryStats current() throws IOException {
+		ByteBuffer snapshot = DoorHistory.snapshot();
+		return snapshot == null ? null : new HistoryStats(snapshot);
+	}
+
+	public static HistoryStats read(File historyFile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(historyFile, "r");
+		try {
+			return new HistoryStats(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return Number of records in the history, oldest first
+	 */
+	public int size() {
+		return times.length;
+	}
+
+	/**
+	 * @return The numbers of the doors that have records, in ascending order
+	 */
+	public int[] getDoors() {
+		boolean[] hasRecords = new boolean[DoorHistory.MAX_DOOR + 1];
+		int doorCount = 0;
+		for ( int door : doors ) {
+			if ( !hasRecords[door] ) doorCount++;
+			hasRecords[door] = true;
+		}
+
+		int[] result = new int[doorCount];
+		for ( int door = 0, i = 0; door < hasRecords.length; door++ ) {
+			if ( hasRecords[door] ) result[i++] = door;
+		}
+		return result;
+	}
+
+	/**
+	 * @param door A door number, or <code>ALL_DOORS</code>
+	 * @param sinceMillis Only count records made at this wall clock time or later
+	 */
+	public int count(HistoryEvent event, int door, long sinceMillis) {
+		int count = 0;
+		for ( int i = 0; i < times.length; i++ ) {
+			if ( matches(i, event, door, sinceMillis) ) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @param door A door number, or <code>ALL_DOORS</code>
+	 * @param percentile Between 0 and 100, e.g. 95
+	 * @param sinceMillis Only look at records made at this wall clock time or later
+	 * @return The value at the given percentile, by nearest rank, or -1 if there are no such records
+	 */
+	public long percentile(HistoryEvent event, int door, double percentile, long sinceMillis) {
+		int[] matching = new int[times.length];
+		int count = 0;
+		for ( int i = 0; i < times.length; i++ ) {
+			if ( matches(i, event, door, sinceMillis) ) {
+				matching[count++] = values[i];
+			}
+		}
+		if ( count == 0 ) return -1;
+
+		Arrays.sort(matching, 0, count);
+		int rank = (int) Math.ceil(percentile / 100 * count);
+		return matching[Math.max(rank, 1) - 1];
+	}
+
+	/**
+	 * @return Share of conversations with the garage that failed, between 0 and 1, or -1 if there were none
+	 */
+	public double failureRate(int door, long sinceMillis) {
+		int failures = count(HistoryEvent.FAILURE, door, sinceMillis);
+		int total = failures + count(HistoryEvent.ROUND_TRIP, door, sinceMillis);
+		return total == 0 ? -1 : (double) failures / total;
+	}
+
+	/**
+	 * @return A summary of every door that has records, each under its number if there is more than one
+	 */
+	public String summarize(long sinceMillis) {
+		int[] doorNumbers = getDoors();
+		if ( doorNumbers.length <= 1 ) {
+			return summarize(doorNumbers.length == 0 ? ALL_DOORS : doorNumbers[0], sinceMillis);
+		}
+
+		StringBuilder summary = new StringBuilder();
+		for ( int door : doorNumbers ) {
+			if ( summary.length() > 0 ) summary.append("\n\n");
+			summary.append(door == DoorHistory.NO_DOOR ? "No door" : "Door " + door).append(":\n");
+			summary.append(summarize(door, sinceMillis));
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * @param door A door number, or <code>ALL_DOORS</code>
+	 * @return A few lines on how the door and the network have been doing over the given period
+	 */
+	public String summarize(int door, long sinceMillis) {
+		StringBuilder summary = new StringBuilder();
+		summary.append("Opened: ").append(count(HistoryEvent.DOOR_OPENED, door, sinceMillis))
+			.append(", p95 ").append(formatP95(HistoryEvent.DOOR_OPENED, door, sinceMillis)).append('\n');
+		summary.append("Closed: ").append(count(HistoryEvent.DOOR_CLOSED, door, sinceMillis))
+			.append(", p95 ").append(formatP95(HistoryEvent.DOOR_CLOSED, door, sinceMillis)).append('\n');
+		summary.append("Round trip p95: ").append(formatP95(HistoryEvent.ROUND_TRIP, door, sinceMillis)).append('\n');
+		summary.append("Handshake p95: ").append(formatP95(HistoryEvent.HANDSHAKE, door, sinceMillis)).append('\n');
+
+		double failureRate = failureRate(door, sinceMillis);
+		summary.append("Failures: ").append(failureRate < 0 ? "-" : String.format("%.1f%%", failureRate * 100));
+		return summary.toString();
+	}
+
+	private boolean matches(int record, HistoryEvent event, int door, long sinceMillis) {
+		return events[record] == event && (door == ALL_DOORS || doors[record] == door) && times[record] >= sinceMillis;
+	}
+
+	private String formatP95(HistoryEvent event, int door, long sinceMillis) {
+		long p95 = percentile(event, door, 95, sinceMillis);
+		return p95 < 0 ? "-" : p95 + "ms";
+	}
+
+	/**
+	 * @return The kind of record stored as <code>code</code>, or <code>null</code> if this version doesn't know it
+	 */
+	private static HistoryEvent forCode(byte code) {
+		for ( HistoryEvent event : EVENTS ) {
+			if ( event.getCode() == code ) return event;
+		}
+		return null;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if ( args.length < 1 ) {
+			System.err.println("Usage: HistoryStats <history file>");
+			System.exit(1);
+		}
+
+		HistoryStats stats = read(new File(args[0]));
+		long now = System.currentTimeMillis();
+
+		System.out.println(stats.size() + " records");
+		System.out.println("--- Last week ---");
+		System.out.println(stats.summarize(now - WEEK));
+		System.out.println("--- All time ---");
+		System.out.println(stats.summarize(0));
+
+		for ( HistoryEvent event : EVENTS ) {
+			System.out.println(event + ": " + stats.count(event, ALL_DOORS, 0));
+		}
+	}
+}
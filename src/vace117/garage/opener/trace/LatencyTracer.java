@@ -0,0 +1,166 @@
+package vace117.garage.opener.trace;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lightweight latency tracing of the path from a knock on the door to the physical door state.
+ * <p>
+ * Spans are kept in a fixed size, on-device ring buffer made of primitive arrays, so recording a span 
+ * costs a couple of array writes and never allocates. The oldest spans are overwritten when the buffer is full.
+ * <p>
+ * Usage:
+ * <pre>
+ * 		long start = LatencyTracer.now();
+ * 		... do the work ...
+ * 		LatencyTracer.record(TraceStage.CONNECT, start);
+ * </pre>
+ * All spans recorded by a thread between <code>beginTrace()</code> and <code>endTrace()</code> share a trace id, so one
+ * door operation can be pieced together offline. The trace belongs to the thread that began it. Work handed off to 
+ * another thread joins the trace by passing the id along and calling <code>resumeTrace()</code> there. 
+ * Spans recorded outside of a trace have trace id 0.
+ *
+ * @author Val Blant
+ */
+public final class LatencyTracer {
+	
+	private static final int CAPACITY = 1024;
+	
+	private static final int[] traceIds = new int[CAPACITY];
+	private static final byte[] stages = new byte[CAPACITY];
+	private static final long[] startTimes = new long[CAPACITY];
+	private static final long[] durations = new long[CAPACITY];
+	
+	private static int nextSpan = 0;
+	private static long totalSpans = 0;
+	
+	private static final AtomicInteger traceIdGenerator = new AtomicInteger();
+	
+	/**
+	 * Trace id of the calling thread, 0 outside of a trace. Held in an array, so that it is never boxed.
+	 */
+	private static final ThreadLocal<int[]> currentTraceId = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+	
+	private static final TraceStage[] STAGES = TraceStage.values();
+	
+	/** Hidden constructor to prevent instantiation. */
+	private LatencyTracer() {}
+	
+	/**
+	 * @return Current time in ns, to be passed to <code>record()</code> later 
+	 */
+	public static long now() {
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Starts a new trace on the calling thread. Spans this thread records from now on are grouped under it.
+	 * 
+	 * @return The new trace id
+	 */
+	public static int beginTrace() {
+		int traceId = traceIdGenerator.incrementAndGet();
+		resumeTrace(traceId);
+		return traceId;
+	}
+	
+	/**
+	 * Groups the spans the calling thread records from now on under a trace begun by another thread. 
+	 * Resuming trace id 0 records untraced spans.
+	 */
+	public static void resumeTrace(int traceId) {
+		currentTraceId.get()[0] = traceId;
+	}
+	
+	/**
+	 * Stops grouping the spans of the calling thread under its current trace
+	 */
+	public static void endTrace() {
+		resumeTrace(0);
+	}
+	
+	/**
+	 * @return The trace id of the calling thread, or 0 if it is not in a trace
+	 */
+	public static int getCurrentTraceId() {
+		return currentTraceId.get()[0];
+	}
+	
+	/**
+	 * Records a span that started at <code>startNanos</code> and ends now 
+	 */
+	public static void record(TraceStage stage, long startNanos) {
+		record(getCurrentTraceId(), stage, startNanos, System.nanoTime());
+	}
+	
+	public static void record(TraceStage stage, long startNanos, long endNanos) {
+		record(getCurrentTraceId(), stage, startNanos, endNanos);
+	}
+	
+	/**
+	 * Records a span that started at <code>startNanos</code> and ends now under the given trace. For spans
+	 * that end on a different thread than the one they started on.
+	 */
+	public static void record(int traceId, TraceStage stage, long startNanos) {
+		record(traceId, stage, startNanos, System.nanoTime());
+	}
+	
+	private static synchronized void record(int traceId, TraceStage stage, long startNanos, long endNanos) {
+		traceIds[nextSpan] = traceId;
+		stages[nextSpan] = (byte) stage.ordinal();
+		startTimes[nextSpan] = startNanos;
+		durations[nextSpan] = endNanos - startNanos;
+		
+		nextSpan = (nextSpan + 1) % CAPACITY;
+		totalSpans++;
+	}
+	
+	/**
+	 * Writes all spans in the ring buffer to a CSV file, in the order they were recorded. 
+	 * The columns are: trace id, stage, start time (us, relative to the start of the first exported span), duration (us). 
+	 * 
+	 * @return Number of spans written
+	 */
+	public static synchronized int exportTo(File file) throws IOException {
+		int spanCount = (int) Math.min(totalSpans, CAPACITY);
+		int firstSpan = (nextSpan - spanCount + CAPACITY) % CAPACITY;
+		long timeOrigin = spanCount > 0 ? startTimes[firstSpan] : 0;
+		
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("trace,stage,start_us,duration_us");
+			for ( int i = 0; i < spanCount; i++ ) {
+				int span = (firstSpan + i) % CAPACITY;
+				out.print(traceIds[span]); out.print(',');
+				out.print(STAGES[stages[span]]); out.print(',');
+				out.print((startTimes[span] - timeOrigin) / 1000); out.print(',');
+				out.println(durations[span] / 1000);
+			}
+			
+			if ( out.checkError() ) {
+				throw new IOException("Unable to write " + file);
+			}
+		}
+		finally {
+			out.close();
+		}
+		
+		return spanCount;
+	}
+	
+	/**
+	 * Drops all recorded spans
+	 */
+	public static synchronized void clear() {
+		nextSpan = 0;
+		totalSpans = 0;
+	}
+}
@@ -0,0 +1,35 @@
+package vace117.garage.opener.trace;
+
+/**
+ * The stages between a knock on the door and the confirmation that the door has finished moving.
+ *
+ * @author Val Blant
+ */
+public enum TraceStage {
+	/** From the first tap of a knock until the knock is recognized */
+	GESTURE,
+	
+	/** From recognizing the knock until the worker thread starts running */
+	THREAD_STARTUP,
+	
+	/** Opening the <code>CommunicationChannel</code> */
+	CONNECT,
+	
+	/** Conversation establishment handshake */
+	HANDSHAKE,
+	
+	/** One message sent and its response received */
+	COMMAND,
+	
+	/** Playback of the open or close animation */
+	ANIMATION,
+	
+	/** The GET_STATUS that confirms the final state of the door */
+	FINAL_STATUS,
+	
+	/** From the start of the work that failed until the failure. Ends the trace. */
+	FAILURE,
+	
+	/** From <code>GarageControlActivity.onCreate()</code> until the first frame is drawn. Not part of any door operation. */
+	STARTUP
+}